@@ -0,0 +1,75 @@
+package eu.kreativzone.roopie.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The cost of talking to the roomba, leaving the serial port out of it:
+ * encoding commands and decoding the values in its answers, in ns each.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class OpenInterfaceBenchmark {
+	private static final int VALUES = 1024;
+
+	private Roomba roomba;
+	private final byte[] bytes = new byte[2 * VALUES];
+	private int vel = 0;
+
+	@Setup
+	public void setup() {
+		roomba = new Roomba(new ByteArrayInputStream(new byte[0]), new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		});
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) (i * 31);
+	}
+
+	@Benchmark
+	public void drive() throws IOException {
+		vel = vel == 500 ? -500 : vel + 1;
+		roomba.drive(vel, 32768);
+	}
+
+	@Benchmark
+	public void driveDirect() throws IOException {
+		vel = vel == 500 ? -500 : vel + 1;
+		roomba.driveDirect(vel, -vel);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public int two2signed() {
+		int sum = 0;
+		for (int i = 0; i < bytes.length; i += 2)
+			sum += Roomba.two2signed(bytes[i], bytes[i + 1]);
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public int two2unsigned() {
+		int sum = 0;
+		for (int i = 0; i < bytes.length; i += 2)
+			sum += Roomba.two2unsigned(bytes[i], bytes[i + 1]);
+		return sum;
+	}
+}
@@ -0,0 +1,82 @@
+package eu.kreativzone.roopie.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import eu.kreativzone.roopie.protocol.Protocol;
+
+/**
+ * The selector thread's share of the work, in ns per frame: decoding the
+ * drive frames from a client, which end up as setpoints in the
+ * DriveScheduler, and encoding and copying the sensor frames sent back. The
+ * robot is a Roomba on empty streams, so no simulator runs alongside.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ServerBenchmark {
+	private static final int FRAMES = 64;
+
+	private DataReader reader;
+	private final ByteBuffer commands = ByteBuffer.allocate(FRAMES * 7);
+	private final ByteBuffer sensors = ByteBuffer.allocate(Protocol.MAX_FRAME);
+	private final SensorSnapshot snapshot = new SensorSnapshot();
+	private final SensorSnapshot frame = new SensorSnapshot();
+
+	@Setup
+	public void setup() throws IOException {
+		Roomba roomba = new Roomba(new ByteArrayInputStream(new byte[0]), new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		});
+		Robot[] fleet = { new Robot(0, roomba, DriveScheduler.DEFAULT_PERIOD) };
+		reader = new DataReader(fleet);
+		ByteBuffer magic = ByteBuffer.allocate(4);
+		magic.putInt(Protocol.MAGIC).flip();
+		reader.read(magic);
+		for (int i = 0; i < FRAMES; i++)
+			Protocol.putDrive(commands, i * 7 - 200, i == 0 ? 32768 : i * 10);
+		int[] data = new int[SensorSnapshot.SIZE];
+		for (int p : DataWriter.PACKETS)
+			data[p] = p * 10;
+		snapshot.publish(data, System.currentTimeMillis(), System.nanoTime());
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public int readDrive() throws IOException {
+		commands.position(0).limit(commands.capacity());
+		reader.read(commands);
+		return commands.position();
+	}
+
+	@Benchmark
+	public int writeSensors() {
+		sensors.clear();
+		DataWriter.putSensors(sensors, snapshot, DataWriter.PACKETS);
+		return sensors.position();
+	}
+
+	@Benchmark
+	public long copySnapshot() {
+		snapshot.copyTo(frame);
+		return frame.sequence();
+	}
+}
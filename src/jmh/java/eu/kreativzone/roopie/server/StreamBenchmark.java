@@ -0,0 +1,92 @@
+package eu.kreativzone.roopie.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * What the stream thread does with the bytes from the roomba, in frames per
+ * second: picking out the frames and decoding them, then publishing them in
+ * the snapshot. The frames are those the GuiServer streams, and arrive in
+ * whatever pieces fit the parser's buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StreamBenchmark {
+	static final int FRAMES = 256;
+
+	private final StreamParser parser = new StreamParser();
+	private final SensorSnapshot snapshot = new SensorSnapshot();
+	private final int[] data = new int[SensorSnapshot.SIZE];
+	private ByteArrayInputStream in;
+
+	@Setup
+	public void setup() {
+		in = new ByteArrayInputStream(frames(DataWriter.PACKETS, FRAMES));
+		parser.setPlan(new StreamPlan(DataWriter.PACKETS));
+	}
+
+	/**
+	 * count frames as the OI would stream them, with two byte values for the
+	 * packets.
+	 */
+	static byte[] frames(int[] packets, int count) {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		for (int f = 0; f < count; f++) {
+			int n = 3 * packets.length;
+			int sum = StreamParser.HEADER + n;
+			b.write(StreamParser.HEADER);
+			b.write(n);
+			for (int i = 0; i < packets.length; i++) {
+				int value = (f * 37 + i * 101) & 0xFFF;
+				b.write(packets[i]);
+				b.write(value >> 8);
+				b.write(value);
+				sum += packets[i] + (value >> 8) + (value & 0xFF);
+			}
+			b.write(-sum & 0xFF);
+		}
+		return b.toByteArray();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public int parse() throws IOException {
+		in.reset();
+		int frames = 0;
+		while (parser.readFrom(in) > 0) {
+			int r;
+			while ((r = parser.next(data)) != StreamParser.MORE)
+				if (r == StreamParser.OK)
+					frames++;
+		}
+		return frames;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public int parseAndPublish() throws IOException {
+		in.reset();
+		int frames = 0;
+		while (parser.readFrom(in) > 0) {
+			int r;
+			while ((r = parser.next(data)) != StreamParser.MORE)
+				if (r == StreamParser.OK) {
+					snapshot.publish(data, System.currentTimeMillis(), System.nanoTime());
+					frames++;
+				}
+		}
+		return frames;
+	}
+}
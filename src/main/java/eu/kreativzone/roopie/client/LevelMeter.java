@@ -49,6 +49,17 @@ class LevelMeter extends JLabel {
 		repaint();
 	}
 
+	/**
+	 * sets the value without repainting, for when a whole panel of meters is
+	 * repainted at once. Returns whether the value changed.
+	 */
+	boolean set(int x) {
+		if (x == value)
+			return false;
+		value = x;
+		return true;
+	}
+
 	public int getValue() {
 		return value;
 	}
@@ -0,0 +1,169 @@
+package eu.kreativzone.roopie.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import eu.kreativzone.roopie.protocol.Protocol;
+
+/**
+ * Sends the client's frames to the server from a thread of its own, so the
+ * Swing thread only ever hands over what is to be sent and never waits on the
+ * socket. Everything waiting is put into one buffer and written in one go.
+ * <p>
+ * Stick moves come much faster than the robot needs them, so only the latest
+ * setpoint is kept, and it goes out at most rate times a second. A command
+ * (stop, clean, dock) replaces a setpoint not sent yet. While the wheels are
+ * set going the last setpoint is sent again every REPEAT, so the server knows
+ * the driver is still there and keeps the lease for it.
+ * <p>
+ * Once the server has offered a UDP port, setpoints go as datagrams, so one
+ * that is lost doesn't hold up the next as it would on TCP; a FENCE goes in
+ * front of each batch of commands so a setpoint sent before a stop can't act
+ * after it.
+ * <p>
+ * Once the sender has been closed, or its thread has died on an error, asking
+ * it to send anything fails with an IOException.
+ */
+class Sender {
+	private static final long REPEAT = TimeUnit.SECONDS.toNanos(2); // well within the server's lease
+
+	private final OutputStream out;
+	private final long period; // ns between drive frames
+	private final ByteBuffer buf = ByteBuffer.allocate(Protocol.MAX_FRAME);
+	// guarded by this
+	private final ArrayDeque<Integer> commands = new ArrayDeque<Integer>();
+	private boolean driving = false; // a setpoint is waiting
+	private boolean moving = false; // the last setpoint sent has the wheels going
+	private int velocity;
+	private int radius;
+	private long sent; // nanoTime the last setpoint went
+	private boolean closed = false;
+	private int token = 0; // the session, 0 until there is one
+	private int sequence = 0; // of the last datagram sent
+	private DatagramSocket udp;
+	private DatagramPacket packet;
+	private final ByteBuffer datagram = ByteBuffer.allocate(Protocol.DATAGRAM_HEADER + 7);
+
+	/**
+	 * a sender writing to out, with at most rate drive frames a second.
+	 */
+	Sender(OutputStream out, int rate) {
+		if (rate < 1)
+			throw new IllegalArgumentException("rate must be at least 1: " + rate);
+		this.out = out;
+		period = TimeUnit.SECONDS.toNanos(1) / rate;
+		sent = System.nanoTime() - period;
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Sender.this.run();
+				} catch (IOException ex) {
+					System.err.println(ex.toString());
+				} catch (InterruptedException ex) {
+				}
+				close();
+			}
+		}, "sender");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * sends a frame with no payload, as soon as possible.
+	 */
+	synchronized void command(int type) throws IOException {
+		if (closed)
+			throw new IOException("sender closed");
+		commands.add(type);
+		driving = false;
+		moving = false;
+		notifyAll();
+	}
+
+	/**
+	 * makes velocity and radius the next setpoint to send.
+	 */
+	synchronized void drive(int velocity, int radius) throws IOException {
+		if (closed)
+			throw new IOException("sender closed");
+		this.velocity = velocity;
+		this.radius = radius;
+		driving = true;
+		notifyAll();
+	}
+
+	/**
+	 * sends setpoints as datagrams to port on the server from now on, with
+	 * the session token it gave.
+	 */
+	synchronized void useUdp(InetAddress server, int port, int token) throws IOException {
+		if (closed || this.token != 0)
+			return;
+		udp = new DatagramSocket();
+		packet = new DatagramPacket(datagram.array(), 0, new InetSocketAddress(server, port));
+		this.token = token;
+	}
+
+	synchronized void close() {
+		closed = true;
+		commands.clear();
+		driving = false;
+		if (udp != null)
+			udp.close();
+		notifyAll();
+	}
+
+	private void run() throws IOException, InterruptedException {
+		while (true) {
+			boolean datagramReady = false;
+			synchronized (this) {
+				while (!closed && commands.isEmpty()) {
+					long since = System.nanoTime() - sent;
+					if (driving && since >= period)
+						break;
+					if (!driving && moving && since >= REPEAT)
+						driving = true; // send the last setpoint again
+					else if (driving)
+						TimeUnit.NANOSECONDS.timedWait(this, period - since);
+					else if (moving)
+						TimeUnit.NANOSECONDS.timedWait(this, REPEAT - since);
+					else
+						wait();
+				}
+				if (closed)
+					return;
+				buf.clear();
+				if (token != 0 && !commands.isEmpty())
+					Protocol.putFence(buf, sequence);
+				while (!commands.isEmpty() && buf.remaining() >= Protocol.MAX_FRAME / 2)
+					Protocol.putCommand(buf, commands.remove());
+				if (driving && System.nanoTime() - sent >= period) {
+					if (token != 0) {
+						datagram.clear();
+						Protocol.putDriveDatagram(datagram, token, ++sequence, velocity, radius);
+						packet.setLength(datagram.position());
+						datagramReady = true;
+					} else {
+						Protocol.putDrive(buf, velocity, radius);
+					}
+					driving = false;
+					moving = velocity != 0;
+					sent = System.nanoTime();
+				}
+			}
+			if (buf.position() > 0) {
+				out.write(buf.array(), 0, buf.position());
+				out.flush();
+			}
+			if (datagramReady)
+				udp.send(packet);
+		}
+	}
+}
@@ -2,10 +2,13 @@ package eu.kreativzone.roopie.client;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 
+import eu.kreativzone.roopie.protocol.Protocol;
+
 /**
  * Run this java application on a laptop on the network your Roomba's Pi is on,
  * and you can move the Roomba about the room by using the mouses to drag the
@@ -14,15 +17,38 @@ import java.awt.event.*;
  */
 
 class UserInterface {
+	// the light bump packets shown by the level meters, left to right
+	private static final int[] LIGHT_BUMPS = { 46, 47, 48, 49, 50, 51 };
+
+	static final int DEFAULT_RATE = 20; // stick setpoints a second
+
 	private DataInputStream in;
-	private DataOutputStream out;
+	private InetAddress server;
+	private Sender sender;
+	// the latest readings from the reader thread, light bumps then the status,
+	// waiting to be shown. Guarded by itself.
+	private final int[] latest = new int[LIGHT_BUMPS.length + 1];
+	private boolean updating = false; // an update is waiting to run on the EDT
 
-	UserInterface(String mc, int port) {
+	/**
+	 * a user interface for the given robot of the server's fleet, sending the
+	 * stick position at most rate times a second.
+	 */
+	UserInterface(String mc, int port, int robot, int rate) {
 		// make the connection
 		try {
 			Socket connection = new Socket(mc, port);
-			in = new DataInputStream(connection.getInputStream());
-			out = new DataOutputStream(connection.getOutputStream());
+			connection.setTcpNoDelay(true); // frames are written whole
+			server = connection.getInetAddress();
+			in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+			OutputStream out = connection.getOutputStream();
+			ByteBuffer hello = ByteBuffer.allocate(32);
+			hello.putInt(Protocol.MAGIC);
+			Protocol.putSubscribe(hello, LIGHT_BUMPS);
+			if (robot != 0)
+				Protocol.putRobot(hello, robot);
+			out.write(hello.array(), 0, hello.position());
+			sender = new Sender(out, rate);
 		} catch (java.net.UnknownHostException ex) {
 			System.out.println(
 					"Unknown host: " + ex.getMessage() + " - is" + " the pi on the Roomba connected to the network?");
@@ -42,6 +68,7 @@ class UserInterface {
 		final LevelMeter lm4 = new LevelMeter(0, 410, 100, 15);
 		final LevelMeter lm5 = new LevelMeter(0, 410, 100, 15);
 		final LevelMeter lm6 = new LevelMeter(0, 410, 100, 15);
+		final LevelMeter[] meters = { lm1, lm2, lm3, lm4, lm5, lm6 };
 		final JoyStick stick = new JoyStick(Color.WHITE);
 		JButton b1 = new JButton("Clean");
 		JButton b2 = new JButton("Dock");
@@ -74,7 +101,7 @@ class UserInterface {
 				try {
 					msgs.setText("clean");
 					stick.zero();
-					out.writeInt(4);
+					send(Protocol.CLEAN);
 				} catch (Exception ex) {
 					msgs.setText("no connection.");
 				}
@@ -87,7 +114,7 @@ class UserInterface {
 				try {
 					msgs.setText("seek dock");
 					stick.zero();
-					out.writeInt(5);
+					send(Protocol.SEEK_DOCK);
 				} catch (Exception ex) {
 					msgs.setText("no connection.");
 				}
@@ -100,7 +127,7 @@ class UserInterface {
 				try {
 					msgs.setText("b3 pressed");
 					stick.zero();
-					out.writeInt(3);
+					send(Protocol.PASSIVE);
 				} catch (Exception ex) {
 					msgs.setText("no connection.");
 				}
@@ -108,53 +135,82 @@ class UserInterface {
 			}
 		});
 		// now make stick write its position down the socket
+		// - the sender sends the latest one when it's time
 		stick.addStickListener(new StickListener() {
 			public void stickMoved(StickEvent ev) {
+				if (sender == null)
+					return;
+				// stick returns a value between 0 and 100
+				int r = ev.X * 40 - 2000; // a value between -2000 and 2000
+				if (r > 0)
+					r = 2001 - r; // 2000 .. 1
+				else if (r < 0)
+					r = -2001 - r;// -2000 .. -1
+				else
+					r = 32768;
+				int v = 500 - ev.Y * 10; // a value between -500 and 500
 				try {
-					// stick returns a value between 0 and 100
-					int r = ev.X * 40 - 2000; // a value between -2000 and 2000
-					if (r > 0)
-						r = 2001 - r; // 2000 .. 1
-					else if (r < 0)
-						r = -2001 - r;// -2000 .. -1
-					else
-						r = 32768;
-					out.writeInt(1);
-					out.writeInt(r);
-					int v = 500 - ev.Y * 10; // a value between -500 and 500
-					out.writeInt(2);
-					out.writeInt(v);
+					sender.drive(v, r);
 				} catch (IOException ex) {
-					System.err.println(ex.toString());
+					msgs.setText("no connection.");
+					msgs.repaint();
 				}
 			}
 		});
+		// shows the latest readings; however many frames came in since it was
+		// asked for, the meters are repainted once
+		final JPanel meterPanel = p2;
+		final Runnable update = new Runnable() {
+			final int[] shown = new int[latest.length];
+
+			public void run() {
+				synchronized (latest) {
+					System.arraycopy(latest, 0, shown, 0, shown.length);
+					updating = false;
+				}
+				int error = shown[LIGHT_BUMPS.length];
+				if (error != 0) {
+					msgs.setText("Error " + error + " streaming data.");
+					return;
+				}
+				boolean changed = false;
+				for (int i = 0; i < meters.length; i++)
+					changed |= meters[i].set(shown[i]);
+				if (changed)
+					meterPanel.repaint();
+			}
+		};
 		// and create a thread to read sensor packets from the socket
 		Thread readr = new Thread(new Runnable() {
+			final byte[] frame = new byte[Protocol.MAX_FRAME];
+			final int[] values = new int[latest.length];
+
 			public void run() {
 				if (in == null)
 					return;
 				try {
 					while (true) {
-						Thread.sleep(15);
-						if (in.available() > 0) {
-							// we are expecting 7 ints - they wait for data
-							int error = in.readInt();
-							if (error != 0) {
-								msgs.setText("Error " + error + " streaming data.");
-							} else {
-								lm1.setValue(in.readInt());
-								lm2.setValue(in.readInt());
-								lm3.setValue(in.readInt());
-								lm4.setValue(in.readInt());
-								lm5.setValue(in.readInt());
-								lm6.setValue(in.readInt());
-							}
+						// blocks until the next frame is in
+						int len = in.readUnsignedShort();
+						if (len == 0 || len > frame.length)
+							throw new IOException("bad frame length " + len);
+						in.readFully(frame, 0, len);
+						if ((frame[0] & 0xFF) == Protocol.SESSION) {
+							useUdp(ByteBuffer.wrap(frame, 1, len - 1));
+							continue;
+						}
+						if (!read(ByteBuffer.wrap(frame, 0, len), values))
+							continue;
+						synchronized (latest) {
+							System.arraycopy(values, 0, latest, 0, latest.length);
+							if (updating)
+								continue; // the update waiting will show these
+							updating = true;
 						}
+						SwingUtilities.invokeLater(update);
 					}
 				} catch (IOException ex) {
 					System.out.println(ex.toString());
-				} catch (InterruptedException ex) {
 				}
 				System.out.println("--- stopped reading ---");
 			}
@@ -162,18 +218,81 @@ class UserInterface {
 		readr.start();
 	}
 
+	/**
+	 * reads the light bumps and the status from a SENSORS frame into values.
+	 * Returns false for any other frame. The light bumps are left as they were
+	 * if the status is an error.
+	 */
+	private static boolean read(ByteBuffer b, int[] values) throws IOException {
+		if ((b.get() & 0xFF) != Protocol.SENSORS)
+			return false;
+		need(b, Protocol.SENSORS_HEADER - 1);
+		b.getInt(); // the sequence
+		int error = b.get() & 0xFF;
+		int n = b.get() & 0xFF;
+		need(b, 5 * n);
+		values[LIGHT_BUMPS.length] = error;
+		for (int i = 0; i < n; i++) {
+			int pid = b.get() & 0xFF;
+			int value = b.getInt();
+			if (error == 0 && pid >= LIGHT_BUMPS[0] && pid <= LIGHT_BUMPS[5])
+				values[pid - LIGHT_BUMPS[0]] = value;
+		}
+		return true;
+	}
+
+	/**
+	 * has the sender send the stick position to the port given in a SESSION
+	 * frame; it stays on TCP if that can't be done.
+	 */
+	private void useUdp(ByteBuffer b) throws IOException {
+		need(b, 6);
+		int token = b.getInt();
+		int port = b.getShort() & 0xFFFF;
+		try {
+			sender.useUdp(server, port, token);
+		} catch (IOException ex) {
+			System.err.println(ex.toString());
+		}
+	}
+
+	/**
+	 * fails unless there are at least n bytes left of the frame.
+	 */
+	private static void need(ByteBuffer b, int n) throws IOException {
+		if (b.remaining() < n)
+			throw new IOException("bad frame");
+	}
+
+	/**
+	 * sends a frame with no payload.
+	 */
+	private void send(int type) throws IOException {
+		if (sender == null)
+			throw new IOException("no connection");
+		sender.command(type);
+	}
+
 	public static void main(String[] args) {
 		System.out.println("Starting UserInterface");
+		// the robot to drive may be given, robot 0 otherwise, and how often
+		// to send the stick position
+		final int robot = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+		final int rate = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_RATE;
+		if (rate < 1) {
+			System.err.println("the rate must be at least 1 a second");
+			return;
+		}
 		javax.swing.SwingUtilities.invokeLater(new Runnable() {
 			public void run() {
 				// The UserInterface communicates with the program
 				// PiServer running on raspberrypi. It is PiServer
 				// that uses the Roomba ROI interface to communicate
 				// with the hardware.
-				// new UserInterface("raspberrypi", 4444);
+				// new UserInterface("raspberrypi", 4444, robot, rate);
 
 				// the rpi is given a static ip address
-				new UserInterface("10.10.10.6", 4444);
+				new UserInterface("10.10.10.6", 4444, robot, rate);
 			}
 		});
 	}
@@ -0,0 +1,144 @@
+package eu.kreativzone.roopie.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The wire format spoken between the GuiServer and the UserInterface.
+ * <p>
+ * Version 1 is a plain sequence of ints: a command code (1 radius, 2 velocity,
+ * 3 passive, 4 clean, 5 seek dock), followed by the value for codes 1 and 2.
+ * The server sends seven ints at a time: an error code and the six light bump
+ * readings.
+ * <p>
+ * The server sends nothing until the client has sent its first four bytes,
+ * which tell it the version: MAGIC for version 2, a command for version 1. A
+ * version 1 client gets no sensor data until its first command.
+ * <p>
+ * A version 2 client starts by sending MAGIC. From then on every message, in
+ * both directions, is a frame: a two byte length counting the type byte and
+ * the payload, the type byte, then the payload. Values are big endian. A
+ * receiver skips frames with a type it doesn't know.
+ * <p>
+ * If the server takes drive setpoints over UDP as well, it tells a version 2
+ * client so in a SESSION frame. The client may then send DRIVE and
+ * DRIVE_DIRECT frames as datagrams, each being the session token, a sequence
+ * number counting up from 1 and the frame. A datagram arriving after a later
+ * one is dropped, so a lost one holds nothing up: the next setpoint replaces
+ * it. Everything else still goes over TCP, with a FENCE in front of it so that
+ * no setpoint sent before it can act after it.
+ */
+public final class Protocol {
+
+	public static final int VERSION = 2;
+	public static final int MAGIC = 0x524F5000 | VERSION; // "ROP" + version
+
+	public static final int HEADER_SIZE = 2; // the length
+	public static final int MAX_FRAME = 1024; // including the header
+	public static final int SENSORS_HEADER = 7; // the type, sequence, status and n
+	public static final int DATAGRAM_HEADER = 8; // the token and sequence
+
+	// client to server
+	/** short velocity (mm/s), short radius (mm) - see drive() */
+	public static final int DRIVE = 1;
+	/** short right, short left wheel velocity (mm/s) */
+	public static final int DRIVE_DIRECT = 2;
+	public static final int PASSIVE = 3;
+	public static final int CLEAN = 4;
+	public static final int SEEK_DOCK = 5;
+	/**
+	 * byte robot id - the robot the connection talks to from now on. A
+	 * connection starts with robot 0.
+	 */
+	public static final int ROBOT = 6;
+	/**
+	 * int sequence - the last drive datagram sent before this frame. Any
+	 * datagram up to it that has yet to arrive is dropped.
+	 */
+	public static final int FENCE = 7;
+	/**
+	 * byte n, then n times byte packet id (7-58) - the packets to be sent in
+	 * SENSORS frames from now on. Until it is sent they are the light bumps,
+	 * 46-51. Best sent along with MAGIC.
+	 */
+	public static final int SUBSCRIBE = 8;
+
+	// server to client
+	/**
+	 * int sequence, byte status, byte n, then n times byte packet id, int
+	 * value. The sequence counts the frames from the roomba, so a gap means
+	 * frames were not sent on.
+	 */
+	public static final int SENSORS = 16;
+	/**
+	 * int token, short port - drive setpoints may be sent as datagrams to the
+	 * port, starting with the token.
+	 */
+	public static final int SESSION = 17;
+
+	private Protocol() {
+	}
+
+	/**
+	 * the radius carried in a drive frame. Straight is sent as 0x8000, which
+	 * comes back as 32768 rather than -32768.
+	 */
+	public static int radius(short r) {
+		return r == Short.MIN_VALUE ? 32768 : r;
+	}
+
+	/**
+	 * puts a frame with no payload.
+	 */
+	public static void putCommand(ByteBuffer b, int type) {
+		b.putShort((short) 1);
+		b.put((byte) type);
+	}
+
+	/**
+	 * puts a ROBOT frame.
+	 */
+	public static void putRobot(ByteBuffer b, int robot) {
+		b.putShort((short) 2);
+		b.put((byte) ROBOT);
+		b.put((byte) robot);
+	}
+
+	/**
+	 * puts a SUBSCRIBE frame.
+	 */
+	public static void putSubscribe(ByteBuffer b, int[] packets) {
+		b.putShort((short) (2 + packets.length));
+		b.put((byte) SUBSCRIBE);
+		b.put((byte) packets.length);
+		for (int p : packets)
+			b.put((byte) p);
+	}
+
+	/**
+	 * puts a FENCE frame.
+	 */
+	public static void putFence(ByteBuffer b, int sequence) {
+		b.putShort((short) 5);
+		b.put((byte) FENCE);
+		b.putInt(sequence);
+	}
+
+	/**
+	 * puts a DRIVE frame.
+	 */
+	public static void putDrive(ByteBuffer b, int velocity, int radius) {
+		b.putShort((short) 5);
+		b.put((byte) DRIVE);
+		b.putShort((short) velocity);
+		b.putShort((short) radius);
+	}
+
+	/**
+	 * puts a DRIVE frame to be sent as a datagram.
+	 */
+	public static void putDriveDatagram(ByteBuffer b, int token, int sequence, int velocity, int radius) {
+		b.putInt(token);
+		b.putInt(sequence);
+		putDrive(b, velocity, radius);
+	}
+}
@@ -0,0 +1,106 @@
+package eu.kreativzone.roopie.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import eu.kreativzone.roopie.protocol.Protocol;
+
+/**
+ * One client of the GuiServer: its channel and the reader and writer that
+ * speak the protocol on it. Everything here runs on the selector thread.
+ * <p>
+ * If the server takes drive datagrams, a version 2 client is sent the port
+ * and its token as soon as it has said which version it speaks.
+ */
+class Connection {
+	final SocketChannel channel;
+	final SelectionKey key;
+	final DataReader reader;
+	final DataWriter writer;
+	final int token; // starts the client's datagrams
+	private final int udpPort; // 0 if there is none
+	private boolean offered = false; // the client has been sent the session
+	private final ServerMetrics metrics;
+	private final ByteBuffer in = ByteBuffer.allocate(Protocol.MAX_FRAME);
+
+	Connection(SocketChannel channel, SelectionKey key, Robot[] fleet, ServerMetrics metrics, int token, int udpPort)
+			throws IOException {
+		this.channel = channel;
+		this.key = key;
+		this.metrics = metrics;
+		this.token = token;
+		this.udpPort = udpPort;
+		reader = new DataReader(fleet);
+		writer = new DataWriter(metrics);
+	}
+
+	/**
+	 * the robot the client is talking to.
+	 */
+	Robot robot() {
+		return reader.robot();
+	}
+
+	/**
+	 * reads what is available and executes any complete commands. Returns
+	 * false once the client has closed its end.
+	 */
+	boolean read() throws IOException {
+		int n = channel.read(in);
+		in.flip();
+		reader.read(in);
+		in.compact();
+		if (!offered && udpPort != 0 && reader.version() == Protocol.VERSION) {
+			writer.session(token, udpPort);
+			offered = true;
+			flush();
+		}
+		return n >= 0;
+	}
+
+	/**
+	 * executes the drive frame in a datagram from the client, which has been
+	 * read up to the sequence number, unless it has been overtaken by a later
+	 * one.
+	 */
+	void datagram(ByteBuffer b) throws IOException {
+		if (reader.readDatagram(b))
+			metrics.datagrams.incrementAndGet();
+		else
+			metrics.datagramsDropped.incrementAndGet();
+	}
+
+	/**
+	 * sends a frame of stream data, once we know which protocol the client
+	 * speaks. Until it has sent something there is no telling, and a guess
+	 * would garble the stream for a version 2 client that is slow to start.
+	 */
+	void send(SensorSnapshot snapshot) throws IOException {
+		if (reader.version() == 0)
+			return;
+		writer.frame(snapshot, reader.version(), reader.packets());
+		flush();
+	}
+
+	/**
+	 * writes queued data, only asking the selector for OP_WRITE while there is
+	 * some left over.
+	 */
+	void flush() throws IOException {
+		if (writer.flush(channel))
+			key.interestOps(SelectionKey.OP_READ);
+		else
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	void close() throws IOException {
+		key.cancel();
+		try {
+			reader.close();
+		} finally {
+			channel.close();
+		}
+	}
+}
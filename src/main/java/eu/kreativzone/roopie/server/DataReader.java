@@ -1,83 +1,323 @@
 package eu.kreativzone.roopie.server;
 
-import java.io.DataInputStream;
-import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.Socket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
 
-class DataReader implements Runnable {
+import eu.kreativzone.roopie.protocol.Protocol;
+
+/**
+ * Decodes the commands sent by one client. Bytes arrive in whatever pieces the
+ * selector hands us, so read() only consumes complete commands and leaves any
+ * partial one in the buffer for the next call.
+ * <p>
+ * The first int tells us which version of the protocol the client speaks -
+ * see Protocol.
+ * <p>
+ * Drive commands only update the setpoint in the DriveScheduler, which sends
+ * it down the serial line in its own time.
+ * <p>
+ * Commands go to robot 0 of the fleet until a version 2 client picks another.
+ * They are only acted on while this client holds the robot's lease; otherwise
+ * the client just watches. Any client can stop the robot, though.
+ * <p>
+ * The packets the client is sent are the light bumps unless it subscribes to
+ * others; the robot streams what its clients want between them.
+ * <p>
+ * A version 2 client may also send its drive frames as datagrams, which the
+ * GuiServer hands to readDatagram(). They carry a sequence number, and one
+ * that is not later than those already seen, or than the last FENCE, is
+ * dropped.
+ */
+class DataReader {
+	private static final EventLog.Event UNKNOWN_CODE = EventLog.warn(DataReader.class, "unrecognized code {}");
+	private static final EventLog.Event UNKNOWN_TYPE = EventLog.warn(DataReader.class,
+			"unrecognized frame type {}");
+	private static final EventLog.Event NOT_IN_CONTROL = EventLog.warn(DataReader.class,
+			"robot {} is driven by another client, command ignored");
+	private static final EventLog.Event STOPPED = EventLog.warn(DataReader.class,
+			"robot {} stopped by a client that isn't driving it");
+
+	private final Robot[] fleet;
+	private Robot robot;
 	IRoombaOpenInterface roomba;
-	Socket skt;
-
-	public DataReader(IRoombaOpenInterface mc, Socket skt) {
-		roomba = mc;
-		this.skt = skt;
-	}
-
-	public void run() {
-		InputStream is = null;
-		try {
-			is = skt.getInputStream();
-			DataInputStream in = new DataInputStream(is);
-			int r = 0;
-			int v = 0;
-			final int SAFE = 0;
-			final int PASSIVE = 1;
-			int mode = SAFE;
-			while (true) {
-				int code = in.readInt();
-				switch (code) {
-				case 1:
-					r = in.readInt();
-					if (mode != SAFE) {
-						roomba.safe();
-						mode = SAFE;
-					}
-					roomba.drive(v, r);
-					break;
-				case 2:
-					v = in.readInt();
-					if (mode != SAFE) {
-						roomba.safe();
-						mode = SAFE;
-					}
-					roomba.drive(v, r);
-					break;
-				case 3:
-					roomba.passive();
-					break;
-				case 4:
-					if (mode != PASSIVE) {
-						roomba.passive();
-						mode = PASSIVE;
-					}
-					roomba.clean();
-					break;
-				case 5:
-					if (mode != PASSIVE) {
-						roomba.passive();
-						mode = PASSIVE;
-					}
-					roomba.seekDock();
-					break;
-				default:
-					System.out.println("Unrecognized code: " + code);
+	private DriveScheduler scheduler;
+	private int version = 0; // not known yet
+	private int r = 0;
+	private int v = 0;
+	private int fence = 0; // the latest datagram sequence seen or fenced off
+	private int[] packets = DataWriter.PACKETS; // subscribed to
+
+	public DataReader(Robot[] fleet) throws IOException {
+		this.fleet = fleet;
+		use(fleet[0]);
+	}
+
+	private void use(Robot r) throws IOException {
+		robot = r;
+		roomba = r.roomba;
+		scheduler = r.scheduler;
+		robot.attach();
+		robot.subscribe(packets);
+	}
+
+	/**
+	 * the robot the client is talking to.
+	 */
+	Robot robot() {
+		return robot;
+	}
+
+	/**
+	 * the packets to send the client.
+	 */
+	int[] packets() {
+		return packets;
+	}
+
+	/**
+	 * the protocol version of the client, or 0 if it hasn't sent anything yet.
+	 */
+	int version() {
+		return version;
+	}
+
+	/**
+	 * consumes as many complete commands as there are in the buffer, which
+	 * must be ready for reading. Returns with the position at the start of the
+	 * first incomplete command.
+	 */
+	public void read(ByteBuffer in) throws IOException {
+		if (version == 0) {
+			if (in.remaining() < 4)
+				return;
+			if (in.getInt(in.position()) == Protocol.MAGIC) {
+				in.getInt();
+				version = 2;
+			} else {
+				version = 1;
+			}
+		}
+		if (version == 1)
+			readV1(in);
+		else
+			readV2(in);
+	}
+
+	private void readV1(ByteBuffer in) throws IOException {
+		while (in.remaining() >= 4) {
+			int code = in.getInt(in.position());
+			if ((code == 1 || code == 2) && in.remaining() < 8)
+				return; // wait for the argument
+			in.getInt();
+			switch (code) {
+			case 1:
+				r = in.getInt();
+				drive(v, r);
+				break;
+			case 2:
+				v = in.getInt();
+				drive(v, r);
+				break;
+			case 3:
+				passive();
+				break;
+			case 4:
+				clean();
+				break;
+			case 5:
+				seekDock();
+				break;
+			default:
+				EventLog.log(UNKNOWN_CODE, code);
+			}
+		}
+	}
+
+	private void readV2(ByteBuffer in) throws IOException {
+		while (in.remaining() >= Protocol.HEADER_SIZE) {
+			int start = in.position();
+			int len = in.getShort(start) & 0xFFFF;
+			if (len == 0 || len > Protocol.MAX_FRAME - Protocol.HEADER_SIZE)
+				throw new IOException("bad frame length " + len);
+			if (in.remaining() < Protocol.HEADER_SIZE + len)
+				return; // wait for the rest
+			in.position(start + Protocol.HEADER_SIZE);
+			int type = in.get() & 0xFF;
+			switch (type) {
+			case Protocol.DRIVE:
+				need(len, 5);
+				v = in.getShort();
+				r = Protocol.radius(in.getShort());
+				drive(v, r);
+				break;
+			case Protocol.DRIVE_DIRECT:
+				need(len, 5);
+				driveDirect(in.getShort(), in.getShort());
+				break;
+			case Protocol.FENCE:
+				need(len, 5);
+				int seq = in.getInt();
+				if (seq - fence > 0)
+					fence = seq;
+				break;
+			case Protocol.PASSIVE:
+				passive();
+				break;
+			case Protocol.CLEAN:
+				clean();
+				break;
+			case Protocol.SEEK_DOCK:
+				seekDock();
+				break;
+			case Protocol.SUBSCRIBE:
+				need(len, 2);
+				int n = in.get() & 0xFF;
+				if (len != 2 + n)
+					throw new IOException("bad subscribe frame");
+				int[] wanted = new int[n];
+				for (int i = 0; i < n; i++) {
+					wanted[i] = in.get() & 0xFF;
+					if (!StreamPlan.single(wanted[i]))
+						throw new IOException("packet " + wanted[i] + " can't be subscribed to");
 				}
+				robot.unsubscribe(packets);
+				packets = wanted;
+				robot.subscribe(packets);
+				break;
+			case Protocol.ROBOT:
+				need(len, 2);
+				int id = in.get() & 0xFF;
+				if (id >= fleet.length)
+					throw new IOException("no robot " + id);
+				if (id != robot.id) {
+					close();
+					use(fleet[id]);
+				}
+				break;
+			default:
+				EventLog.log(UNKNOWN_TYPE, type);
 			}
-		} catch (SocketException ex) {
-			System.err.println(ex.toString());
-		} catch (EOFException ex) {
-			// standard exiting condition
-		} catch (IOException ex) {
-			System.err.println(ex.toString());
+			in.position(start + Protocol.HEADER_SIZE + len);
+		}
+	}
+
+	/**
+	 * turns down a frame too short for the payload of its type, len being
+	 * its length without the header.
+	 */
+	private static void need(int len, int min) throws IOException {
+		if (len < min)
+			throw new IOException("bad frame");
+	}
+
+	/**
+	 * executes the drive frame in a datagram, which has been read up to the
+	 * sequence number, unless it is out of date or there is something wrong
+	 * with it. Returns false if it was dropped.
+	 */
+	boolean readDatagram(ByteBuffer in) throws IOException {
+		if (version != Protocol.VERSION || in.remaining() < 4 + Protocol.HEADER_SIZE + 5)
+			return false;
+		int seq = in.getInt();
+		int len = in.getShort() & 0xFFFF;
+		if (seq - fence <= 0 || len != in.remaining() || !control())
+			return false;
+		switch (in.get() & 0xFF) {
+		case Protocol.DRIVE:
+			v = in.getShort();
+			r = Protocol.radius(in.getShort());
+			drive(v, r);
+			break;
+		case Protocol.DRIVE_DIRECT:
+			driveDirect(in.getShort(), in.getShort());
+			break;
+		default:
+			return false;
+		}
+		fence = seq;
+		return true;
+	}
+
+	/**
+	 * whether this client may drive the robot.
+	 */
+	private boolean control() {
+		if (robot.lease(this))
+			return true;
+		EventLog.log(NOT_IN_CONTROL, robot.id);
+		return false;
+	}
+
+	private void safe() throws IOException {
+		if (robot.mode != Robot.SAFE) {
+			scheduler.cancel();
+			roomba.safe();
+			robot.mode = Robot.SAFE;
 		}
-		try {
-			if (is != null)
-				is.close();
-		} catch (IOException ex) {
-			System.err.println(ex.toString());
+	}
+
+	/**
+	 * puts the roomba in passive mode, as clean and seekDock need.
+	 */
+	private void toPassive() throws IOException {
+		scheduler.cancel();
+		roomba.passive();
+		robot.mode = Robot.PASSIVE;
+		robot.driving = false;
+	}
+
+	private void drive(int v, int r) throws IOException {
+		if (!control())
+			return;
+		safe();
+		scheduler.drive(v, r);
+		robot.driving = v != 0;
+	}
+
+	private void driveDirect(int right, int left) throws IOException {
+		if (!control())
+			return;
+		safe();
+		scheduler.driveDirect(right, left);
+		robot.driving = right != 0 || left != 0;
+	}
+
+	/**
+	 * stops the robot, whoever has the lease.
+	 */
+	private void passive() throws IOException {
+		if (!robot.lease(this))
+			EventLog.log(STOPPED, robot.id);
+		toPassive();
+	}
+
+	private void clean() throws IOException {
+		if (!control())
+			return;
+		if (robot.mode != Robot.PASSIVE)
+			toPassive();
+		roomba.clean();
+	}
+
+	private void seekDock() throws IOException {
+		if (!control())
+			return;
+		if (robot.mode != Robot.PASSIVE)
+			toPassive();
+		roomba.seekDock();
+	}
+
+	/**
+	 * stops the wheels if this client has the lease and has been driving
+	 * them, so a dropped connection doesn't leave the roomba running, and
+	 * lets go of the robot.
+	 */
+	public void close() throws IOException {
+		if (robot.release(this) && robot.driving) {
+			scheduler.drive(0, 0);
+			robot.driving = false;
 		}
+		robot.unsubscribe(packets);
+		robot.detach();
 	}
-}
\ No newline at end of file
+}
@@ -1,56 +1,135 @@
 package eu.kreativzone.roopie.server;
 
-import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
 
-class DataWriter implements Runnable {
-	IRoombaOpenInterface roomba;
-	Socket skt;
+import eu.kreativzone.roopie.protocol.Protocol;
 
-	DataWriter(IRoombaOpenInterface mc, Socket skt) {
-		roomba = mc;
-		this.skt = skt;
+/**
+ * Encodes the sensor data sent to one client. Frames wait in a small queue of
+ * their own and are written whenever the channel will take them. When a client
+ * falls behind and the queue is full, the oldest frame waiting makes way for
+ * the new one: each frame holds every value, so a slow client misses the stale
+ * ones and still gets the latest, without holding up anyone else.
+ * <p>
+ * Frames that must not be lost, such as SESSION, go straight into the output
+ * buffer.
+ * <p>
+ * A frame counts as sent once it leaves the queue for the output buffer, and
+ * the send latency is the time from the oldest frame in a batch arriving from
+ * the roomba to the whole batch having been written.
+ */
+class DataWriter {
+	static final int[] PACKETS = { 46, 47, 48, 49, 50, 51 }; // sent unless the client subscribes to others
+	static final int QUEUE = 4; // frames waiting, a power of 2
+
+	// the frames being written, and any that must not be dropped
+	private final ByteBuffer out = ByteBuffer.allocate((QUEUE + 1) * Protocol.MAX_FRAME);
+	private final ByteBuffer[] queue = new ByteBuffer[QUEUE];
+	private int head = 0; // the oldest waiting
+	private int count = 0;
+	private final long[] arrived = new long[QUEUE]; // nanoTime of each frame waiting
+	private long oldest = 0; // nanoTime of the first frame being written, 0 if none
+	private final ServerMetrics metrics;
+
+	DataWriter(ServerMetrics metrics) {
+		this.metrics = metrics;
+		out.flip(); // nothing to send yet
+		for (int i = 0; i < QUEUE; i++)
+			queue[i] = ByteBuffer.allocate(Protocol.MAX_FRAME);
 	}
 
-	public void run() {
-		OutputStream os = null;
-		int[] x = { 46, 47, 48, 49, 50, 51 }; // the packets to stream
-		try {
-			os = skt.getOutputStream();
-			DataOutputStream out = new DataOutputStream(os);
-			x = roomba.stream(x); // x is now roomba.steamData
-			while (!skt.isClosed()) {
-				try {
-					Thread.sleep(100);
-				} catch (InterruptedException e) {
-					// nop
-				}
-				
-				out.writeInt(x[0]); // send any err code first
-				out.writeInt(x[IRoombaOpenInterface.LIGHT_BUMP_L]); // 46
-				out.writeInt(x[IRoombaOpenInterface.LIGHT_BUMP_FL]); // 47
-				out.writeInt(x[IRoombaOpenInterface.LIGHT_BUMP_CL]); // 48
-				out.writeInt(x[IRoombaOpenInterface.LIGHT_BUMP_CR]); // 49
-				out.writeInt(x[IRoombaOpenInterface.LIGHT_BUMP_FR]); // 50
-				out.writeInt(x[IRoombaOpenInterface.LIGHT_BUMP_R]); // 51
-			}
-		} catch (SocketException ex) {
-			// std exit condition
-		} catch (EOFException ex) {
-			// std exit condition
-		} catch (IOException ex) {
-			System.err.println(ex.toString());
+	/**
+	 * queues a frame made from the snapshot, in the client's version of the
+	 * protocol, with the packets it subscribed to. If the queue is full the
+	 * oldest frame in it is dropped to make room.
+	 */
+	void frame(SensorSnapshot x, int version, int[] packets) {
+		if (count == QUEUE) {
+			head = (head + 1) & (QUEUE - 1);
+			count--;
+			metrics.framesDropped.incrementAndGet();
+		}
+		int tail = (head + count) & (QUEUE - 1);
+		arrived[tail] = x.nanoTime();
+		ByteBuffer b = queue[tail];
+		b.clear();
+		if (version == Protocol.VERSION) {
+			putSensors(b, x, packets);
+		} else {
+			b.putInt(x.status()); // send any err code first
+			b.putInt(x.get(IRoombaOpenInterface.LIGHT_BUMP_L)); // 46
+			b.putInt(x.get(IRoombaOpenInterface.LIGHT_BUMP_FL)); // 47
+			b.putInt(x.get(IRoombaOpenInterface.LIGHT_BUMP_CL)); // 48
+			b.putInt(x.get(IRoombaOpenInterface.LIGHT_BUMP_CR)); // 49
+			b.putInt(x.get(IRoombaOpenInterface.LIGHT_BUMP_FR)); // 50
+			b.putInt(x.get(IRoombaOpenInterface.LIGHT_BUMP_R)); // 51
 		}
-		try {
-			if (os != null) {
-				os.close();
+		b.flip();
+		count++;
+	}
+
+	/**
+	 * queues a SESSION frame, offering the client the UDP port for its drive
+	 * setpoints.
+	 */
+	void session(int token, int port) {
+		out.compact();
+		out.putShort((short) 7);
+		out.put((byte) Protocol.SESSION);
+		out.putInt(token);
+		out.putShort((short) port);
+		out.flip();
+	}
+
+	/**
+	 * puts a SENSORS frame holding the given packets from the snapshot.
+	 * Returns false, having put nothing, if there isn't room.
+	 */
+	static boolean putSensors(ByteBuffer b, SensorSnapshot x, int[] packets) {
+		int len = Protocol.SENSORS_HEADER + 5 * packets.length;
+		if (b.remaining() < Protocol.HEADER_SIZE + len)
+			return false;
+		b.putShort((short) len);
+		b.put((byte) Protocol.SENSORS);
+		b.putInt((int) x.sequence());
+		b.put((byte) x.status());
+		b.put((byte) packets.length);
+		for (int i = 0; i < packets.length; i++) {
+			b.put((byte) packets[i]);
+			b.putInt(x.get(packets[i]));
+		}
+		return true;
+	}
+
+	/**
+	 * writes as much as the channel will take. Returns true if everything
+	 * queued has been sent. The frames waiting are only moved to the output
+	 * buffer, and so can no longer be dropped, once what was in it has gone.
+	 */
+	boolean flush(SocketChannel ch) throws IOException {
+		while (true) {
+			if (out.hasRemaining()) {
+				ch.write(out);
+				if (out.hasRemaining())
+					return false;
+			}
+			if (oldest != 0) {
+				metrics.sendLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - oldest));
+				oldest = 0;
+			}
+			if (count == 0)
+				return true;
+			out.clear();
+			oldest = arrived[head];
+			metrics.framesSent.addAndGet(count);
+			for (; count > 0; count--) {
+				out.put(queue[head]);
+				head = (head + 1) & (QUEUE - 1);
 			}
-		} catch (IOException ex) {
-			System.err.println(ex.toString());
+			out.flip();
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,115 @@
+package eu.kreativzone.roopie.server;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the latest drive setpoint from the clients and sends it to the roomba
+ * from a thread of its own at a fixed rate. However fast setpoints come in, at
+ * most one drive command goes down the serial line per period, it is always
+ * the newest one, and it isn't sent again if it hasn't changed. Nothing that
+ * reads from a socket ever waits on the serial port to drive.
+ * <p>
+ * The thread comes from an executor that the schedulers of several robots can
+ * share.
+ */
+class DriveScheduler {
+	static final int DEFAULT_PERIOD = 15; // ms, the rate the OI updates at
+
+	private static final long NONE = Long.MIN_VALUE;
+	private static final long DIRECT = 1L << 40; // driveDirect rather than drive
+	private static final EventLog.Event FAILED = EventLog.warn(DriveScheduler.class, "drive command not sent: {}");
+
+	private final IRoombaOpenInterface roomba;
+	private final int period;
+	private final AtomicLong setpoint = new AtomicLong(NONE);
+	private long last = NONE; // the last one sent
+	private ScheduledFuture<?> task;
+
+	DriveScheduler(IRoombaOpenInterface roomba, int period) {
+		this.roomba = roomba;
+		this.period = period < 1 ? DEFAULT_PERIOD : period;
+	}
+
+	/**
+	 * the setpoint is two 20 bit fields, so a radius of 32768 survives.
+	 */
+	private static long pack(long kind, int a, int b) {
+		return kind | (a & 0xFFFFFL) << 20 | b & 0xFFFFFL;
+	}
+
+	private static int first(long s) {
+		return (int) (s << 24 >> 44);
+	}
+
+	private static int second(long s) {
+		return (int) (s << 44 >> 44);
+	}
+
+	/**
+	 * sets the setpoint to drive(vel, radius).
+	 */
+	void drive(int vel, int radius) {
+		setpoint.set(pack(0, vel, radius));
+	}
+
+	/**
+	 * sets the setpoint to driveDirect(right, left).
+	 */
+	void driveDirect(int right, int left) {
+		setpoint.set(pack(DIRECT, right, left));
+	}
+
+	/**
+	 * drops any setpoint not sent yet, and forgets the last one sent so it
+	 * will go again if asked for. Call it before changing the OI mode; once it
+	 * returns no older setpoint will be sent after the mode change.
+	 */
+	synchronized void cancel() {
+		setpoint.set(NONE);
+		last = NONE;
+	}
+
+	/**
+	 * sends the setpoint if there's a new one.
+	 */
+	synchronized void send() throws IOException {
+		long s = setpoint.getAndSet(NONE);
+		if (s == NONE || s == last)
+			return;
+		last = s;
+		if ((s & DIRECT) != 0)
+			roomba.driveDirect(first(s), second(s));
+		else
+			roomba.drive(first(s), second(s));
+	}
+
+	void start(ScheduledExecutorService executor) {
+		task = executor.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				try {
+					send();
+				} catch (IOException ex) {
+					EventLog.log(FAILED, ex);
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * stops sending, having sent any setpoint still waiting.
+	 */
+	void stop() {
+		if (task == null)
+			return;
+		task.cancel(false);
+		try {
+			send();
+		} catch (IOException ex) {
+			EventLog.log(FAILED, ex);
+		}
+	}
+}
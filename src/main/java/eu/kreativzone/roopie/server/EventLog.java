@@ -0,0 +1,208 @@
+package eu.kreativzone.roopie.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logging for the threads doing the I/O. log() puts the event into a ring of
+ * entries made up front and returns; a thread of its own takes them out and
+ * hands them to slf4j (and so to logback), so formatting and the console
+ * never hold up the serial or socket threads. log() doesn't allocate, lock or
+ * wait: if the ring is full the event is dropped, and the drops are counted
+ * and reported.
+ * <p>
+ * What can be logged is declared up front as an Event, with the class it
+ * belongs to and a message in the slf4j format. The {} in the message are
+ * filled in with the numbers given to log(), and then the detail; an
+ * exception with no {} left for it is logged with its stack trace, as slf4j
+ * does. Warnings and errors are logged at most once a second each; any more
+ * in the meantime are counted and mentioned in the next one, so a serial line
+ * going up and down can't flood the log.
+ */
+final class EventLog {
+	static final int CAPACITY = 1024; // a power of 2
+	private static final int MASK = CAPACITY - 1;
+	static final long REPEAT = TimeUnit.SECONDS.toNanos(1); // between repeats of a warning
+	private static final long IDLE = TimeUnit.MILLISECONDS.toNanos(10); // drain waits when there's nothing
+
+	static final int INFO = 0;
+	static final int WARN = 1;
+	static final int ERROR = 2;
+
+	/**
+	 * something that can be logged.
+	 */
+	static final class Event {
+		final Logger logger;
+		final int level;
+		final String message;
+		final long interval; // ns between logging it, 0 for every time
+		private final AtomicLong next = new AtomicLong(System.nanoTime()); // when it may be logged again
+		private final AtomicInteger suppressed = new AtomicInteger();
+
+		Event(Class<?> owner, int level, String message, long interval) {
+			logger = LoggerFactory.getLogger(owner);
+			this.level = level;
+			this.message = message;
+			this.interval = interval;
+		}
+	}
+
+	private static final class Entry {
+		Event event;
+		int n; // numbers given
+		long a;
+		long b;
+		Object detail;
+		int suppressed;
+	}
+
+	private static final Entry[] entries = new Entry[CAPACITY];
+	private static final AtomicLongArray published = new AtomicLongArray(CAPACITY); // sequence in each entry
+	private static final AtomicLong head = new AtomicLong(); // the next sequence to claim
+	private static final AtomicLong tail = new AtomicLong(); // the next sequence to drain
+	private static final AtomicLong dropped = new AtomicLong();
+	private static final Logger LOG = LoggerFactory.getLogger(EventLog.class);
+	private static final Thread drain;
+
+	static {
+		for (int i = 0; i < CAPACITY; i++) {
+			entries[i] = new Entry();
+			published.set(i, -1);
+		}
+		drain = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					if (!drain())
+						LockSupport.parkNanos(IDLE);
+				}
+			}
+		}, "events");
+		drain.setDaemon(true);
+		drain.start();
+	}
+
+	private EventLog() {
+	}
+
+	static Event info(Class<?> owner, String message) {
+		return new Event(owner, INFO, message, 0);
+	}
+
+	static Event warn(Class<?> owner, String message) {
+		return new Event(owner, WARN, message, REPEAT);
+	}
+
+	static Event error(Class<?> owner, String message) {
+		return new Event(owner, ERROR, message, REPEAT);
+	}
+
+	static void log(Event e) {
+		log(e, 0, 0, 0, null);
+	}
+
+	static void log(Event e, long a) {
+		log(e, 1, a, 0, null);
+	}
+
+	static void log(Event e, long a, long b) {
+		log(e, 2, a, b, null);
+	}
+
+	static void log(Event e, Object detail) {
+		log(e, 0, 0, 0, detail);
+	}
+
+	static void log(Event e, long a, Object detail) {
+		log(e, 1, a, 0, detail);
+	}
+
+	private static void log(Event e, int n, long a, long b, Object detail) {
+		int suppressed = 0;
+		if (e.interval > 0) {
+			long now = System.nanoTime();
+			long next = e.next.get();
+			if (now - next < 0 || !e.next.compareAndSet(next, now + e.interval)) {
+				e.suppressed.incrementAndGet();
+				return;
+			}
+			suppressed = e.suppressed.getAndSet(0);
+		}
+		long seq;
+		do {
+			seq = head.get();
+			if (seq - tail.get() >= CAPACITY) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!head.compareAndSet(seq, seq + 1));
+		Entry entry = entries[(int) seq & MASK];
+		entry.event = e;
+		entry.n = n;
+		entry.a = a;
+		entry.b = b;
+		entry.detail = detail;
+		entry.suppressed = suppressed;
+		published.lazySet((int) seq & MASK, seq);
+	}
+
+	/**
+	 * logs the events waiting in the ring. Returns false if there were none.
+	 */
+	private static synchronized boolean drain() {
+		long seq = tail.get();
+		if (published.get((int) seq & MASK) != seq)
+			return false;
+		do {
+			Entry entry = entries[(int) seq & MASK];
+			write(entry);
+			entry.detail = null;
+			tail.lazySet(++seq);
+		} while (published.get((int) seq & MASK) == seq);
+		long lost = dropped.getAndSet(0);
+		if (lost > 0)
+			LOG.warn("{} events dropped, the log couldn't keep up", lost);
+		return true;
+	}
+
+	private static void write(Entry entry) {
+		Event e = entry.event;
+		String message = e.message;
+		if (entry.suppressed > 0)
+			message += " (and " + entry.suppressed + " more like it)";
+		Object[] args = new Object[entry.n + (entry.detail != null ? 1 : 0)];
+		int i = 0;
+		if (entry.n > 0)
+			args[i++] = entry.a;
+		if (entry.n > 1)
+			args[i++] = entry.b;
+		if (entry.detail != null)
+			args[i++] = entry.detail;
+		switch (e.level) {
+		case INFO:
+			e.logger.info(message, args);
+			break;
+		case WARN:
+			e.logger.warn(message, args);
+			break;
+		default:
+			e.logger.error(message, args);
+		}
+	}
+
+	/**
+	 * logs whatever is still waiting; call it on the way out, as the draining
+	 * thread is a daemon.
+	 */
+	static void flush() {
+		while (head.get() != tail.get())
+			if (!drain())
+				Thread.yield(); // a log() part way through
+	}
+}
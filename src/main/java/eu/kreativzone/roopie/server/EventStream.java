@@ -0,0 +1,351 @@
+package eu.kreativzone.roopie.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Streams the sensor frames of the fleet to browsers as Server-Sent Events,
+ * so a dashboard needs nothing more than an EventSource on
+ * http://pi:port/events/n for robot n (/events for robot 0). Each event has
+ * the frame's sequence number as its id, and a JSON object as its data, with
+ * whichever packets the robot is streaming for its clients:
+ * <pre>
+ * {"robot":0,"sequence":1234,"timestamp":1690000000000,"status":0,"packets":{"46":12,"47":0}}
+ * </pre>
+ * It runs on the GuiServer's selector thread like everything else there,
+ * rather than on an HttpServer like Metrics: an event stream never finishes,
+ * so each one would hold a thread of the server's for as long as it is
+ * watched, and take frames from the selector thread besides. A
+ * frame is turned into its event once, however many are watching, and the
+ * bytes are copied into each subscriber's buffer; one that falls more than a
+ * few frames behind misses frames rather than holding up the others.
+ * <p>
+ * There are at most MAX_SUBSCRIBERS connections at a time, and one that
+ * hasn't sent its request within REQUEST_TIMEOUT is closed by expire(), which
+ * the selector thread calls each time round, frames or not.
+ */
+class EventStream {
+	private static final int REQUEST_SIZE = 2048; // the most of a request we'll read
+	private static final int EVENT_SIZE = 4096;
+	private static final int QUEUE_SIZE = 4 * EVENT_SIZE; // for each subscriber
+	static final int MAX_SUBSCRIBERS = 32;
+	static final int REQUEST_TIMEOUT = 1000; // ms to wait for a request
+	private static final byte[] OK = ascii("HTTP/1.1 200 OK\r\n" + "Content-Type: text/event-stream\r\n"
+			+ "Cache-Control: no-cache\r\n" + "Access-Control-Allow-Origin: *\r\n" + "\r\n");
+	private static final byte[] NOT_FOUND = ascii("HTTP/1.1 404 Not Found\r\n" + "Content-Length: 0\r\n"
+			+ "Connection: close\r\n" + "\r\n");
+	private static final byte[] BAD_REQUEST = ascii("HTTP/1.1 400 Bad Request\r\n" + "Content-Length: 0\r\n"
+			+ "Connection: close\r\n" + "\r\n");
+
+	/**
+	 * a browser watching a robot, or one that hasn't said which yet.
+	 */
+	private static final class Subscriber {
+		final SocketChannel channel;
+		final SelectionKey key;
+		final ByteBuffer in = ByteBuffer.allocate(REQUEST_SIZE);
+		final ByteBuffer out = ByteBuffer.allocate(QUEUE_SIZE);
+		final long accepted = System.currentTimeMillis();
+		int robot = -1; // not known until the request is in
+		boolean closing = false; // turned down, closed once the reply is sent
+
+		Subscriber(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+			out.flip(); // nothing to send yet
+		}
+	}
+
+	private final Selector selector;
+	private final ServerSocketChannel serverChannel;
+	private final Robot[] fleet;
+	private final ServerMetrics metrics;
+	private final ArrayList<Subscriber> subscribers = new ArrayList<Subscriber>();
+	private final ByteBuffer event = ByteBuffer.allocate(EVENT_SIZE);
+
+	/**
+	 * an event stream for the fleet on port, served by selector.
+	 */
+	EventStream(Selector selector, int port, Robot[] fleet, ServerMetrics metrics) throws IOException {
+		this.selector = selector;
+		this.fleet = fleet;
+		this.metrics = metrics;
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT, this);
+	}
+
+	/**
+	 * whether the key is one of ours.
+	 */
+	boolean owns(SelectionKey key) {
+		return key.attachment() == this || key.attachment() instanceof Subscriber;
+	}
+
+	/**
+	 * does what the selector has found to do for one of our keys.
+	 */
+	void handle(SelectionKey key) throws IOException {
+		if (key.isAcceptable()) {
+			accept();
+			return;
+		}
+		Subscriber s = (Subscriber) key.attachment();
+		try {
+			if (key.isReadable() && !read(s)) {
+				close(s);
+				return;
+			}
+			if (key.isValid() && key.isWritable())
+				flush(s);
+		} catch (IOException ex) {
+			close(s);
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel ch = serverChannel.accept();
+		if (ch == null)
+			return;
+		if (subscribers.size() >= MAX_SUBSCRIBERS) {
+			ch.close();
+			return;
+		}
+		ch.configureBlocking(false);
+		ch.socket().setTcpNoDelay(true);
+		SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
+		Subscriber s = new Subscriber(ch, key);
+		key.attach(s);
+		subscribers.add(s);
+	}
+
+	/**
+	 * reads the request, and then nothing but the end of the connection.
+	 * Returns false once the browser has closed its end.
+	 */
+	private boolean read(Subscriber s) throws IOException {
+		if (s.robot >= 0 || s.closing) {
+			s.in.clear();
+			return s.channel.read(s.in) >= 0;
+		}
+		if (s.channel.read(s.in) < 0)
+			return false;
+		int end = endOfHeaders(s.in);
+		if (end < 0) {
+			if (s.in.hasRemaining())
+				return true; // wait for the rest
+			return reply(s, BAD_REQUEST);
+		}
+		String request = new String(s.in.array(), 0, end + 2, StandardCharsets.ISO_8859_1); // up to the first CRLF
+		String[] line = request.substring(0, request.indexOf('\r')).split(" ");
+		if (line.length != 3 || !line[0].equals("GET"))
+			return reply(s, BAD_REQUEST);
+		int robot = robot(line[1]);
+		if (robot < 0)
+			return reply(s, NOT_FOUND);
+		s.out.compact();
+		s.out.put(OK);
+		s.out.flip();
+		s.robot = robot;
+		metrics.subscribers.incrementAndGet();
+		flush(s);
+		return true;
+	}
+
+	/**
+	 * where the blank line ending the headers is in what has been read, or -1
+	 * if it hasn't come yet.
+	 */
+	private static int endOfHeaders(ByteBuffer in) {
+		byte[] b = in.array();
+		for (int i = 3; i < in.position(); i++)
+			if (b[i - 3] == '\r' && b[i - 2] == '\n' && b[i - 1] == '\r' && b[i] == '\n')
+				return i - 3;
+		return -1;
+	}
+
+	/**
+	 * the robot a path asks for, or -1 if there's no such thing.
+	 */
+	private int robot(String path) {
+		int query = path.indexOf('?');
+		if (query >= 0)
+			path = path.substring(0, query);
+		if (path.equals("/events") || path.equals("/events/"))
+			return 0;
+		if (!path.startsWith("/events/"))
+			return -1;
+		try {
+			int robot = Integer.parseInt(path.substring("/events/".length()));
+			return robot >= 0 && robot < fleet.length ? robot : -1;
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+	/**
+	 * sends a response turning the request down, closing the connection once
+	 * it has all gone.
+	 */
+	private boolean reply(Subscriber s, byte[] response) throws IOException {
+		s.out.compact();
+		s.out.put(response);
+		s.out.flip();
+		s.closing = true;
+		flush(s);
+		return true;
+	}
+
+	/**
+	 * closes any connection that is still waiting for its request after
+	 * REQUEST_TIMEOUT.
+	 */
+	void expire() {
+		long now = System.currentTimeMillis();
+		for (int i = subscribers.size() - 1; i >= 0; i--) {
+			Subscriber s = subscribers.get(i);
+			if (s.robot < 0 && now - s.accepted >= REQUEST_TIMEOUT)
+				close(s);
+		}
+	}
+
+	/**
+	 * sends the robot's frame to those watching it.
+	 */
+	void send(Robot robot) {
+		boolean encoded = false;
+		for (int i = subscribers.size() - 1; i >= 0; i--) {
+			Subscriber s = subscribers.get(i);
+			if (s.robot != robot.id)
+				continue;
+			if (!encoded) {
+				encode(robot, robot.packets);
+				encoded = true;
+			}
+			s.out.compact();
+			boolean queued = s.out.remaining() >= event.remaining();
+			if (queued)
+				s.out.put(event.array(), 0, event.limit());
+			s.out.flip();
+			if (queued)
+				metrics.eventsSent.incrementAndGet();
+			else
+				metrics.eventsDropped.incrementAndGet();
+			try {
+				flush(s);
+			} catch (IOException ex) {
+				close(s);
+			}
+		}
+	}
+
+	/**
+	 * puts the event for the robot's frame, with the given packets, into
+	 * event, ready to be read.
+	 */
+	private void encode(Robot robot, int[] packets) {
+		SensorSnapshot x = robot.frame;
+		ByteBuffer b = event;
+		b.clear();
+		put(b, "id: ");
+		put(b, x.sequence());
+		put(b, "\ndata: {\"robot\":");
+		put(b, robot.id);
+		put(b, ",\"sequence\":");
+		put(b, x.sequence());
+		put(b, ",\"timestamp\":");
+		put(b, x.timestamp());
+		put(b, ",\"status\":");
+		put(b, x.status());
+		put(b, ",\"packets\":{");
+		for (int i = 0; i < packets.length; i++) {
+			if (i > 0)
+				b.put((byte) ',');
+			b.put((byte) '"');
+			put(b, packets[i]);
+			put(b, "\":");
+			put(b, x.get(packets[i]));
+		}
+		put(b, "}}\n\n");
+		b.flip();
+	}
+
+	private static void put(ByteBuffer b, String s) {
+		for (int i = 0; i < s.length(); i++)
+			b.put((byte) s.charAt(i));
+	}
+
+	/**
+	 * puts n in decimal, without making a String of it.
+	 */
+	private static void put(ByteBuffer b, long n) {
+		if (n < 0) {
+			b.put((byte) '-');
+			n = -n;
+		}
+		int start = b.position();
+		do {
+			b.put((byte) ('0' + n % 10));
+			n /= 10;
+		} while (n > 0);
+		// the digits went in backwards
+		for (int i = start, j = b.position() - 1; i < j; i++, j--) {
+			byte t = b.get(i);
+			b.put(i, b.get(j));
+			b.put(j, t);
+		}
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * writes queued events, only asking the selector for OP_WRITE while there
+	 * are some left over, and closes a turned down connection once its reply
+	 * has gone.
+	 */
+	private void flush(Subscriber s) throws IOException {
+		s.channel.write(s.out);
+		if (s.out.hasRemaining())
+			s.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		else if (s.closing)
+			close(s);
+		else
+			s.key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private void close(Subscriber s) {
+		subscribers.remove(s);
+		if (s.robot >= 0)
+			metrics.subscribers.decrementAndGet();
+		s.key.cancel();
+		try {
+			s.channel.close();
+		} catch (IOException ex) {
+			// nop
+		}
+	}
+
+	/**
+	 * closes the subscribers and the server socket.
+	 */
+	void close() {
+		for (int i = subscribers.size() - 1; i >= 0; i--)
+			close(subscribers.get(i));
+		try {
+			serverChannel.close();
+		} catch (IOException ex) {
+			// nop
+		}
+	}
+}
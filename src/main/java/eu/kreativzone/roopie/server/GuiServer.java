@@ -2,40 +2,403 @@ package eu.kreativzone.roopie.server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import com.jcabi.aspects.Loggable;
-
-import javaslang.collection.List;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
 
+import eu.kreativzone.roopie.protocol.Protocol;
+
 /**
  * This java application enables the RoombaGUI.UserInterface (running on another
  * machine) to control the Roomba. It is compiled and run on the raspberry pi
  * connected to the Roomba, and uses the java implementation of the Roomba Open
  * Interface, RooPie.ROI. This needs to be running before you start the
  * UserInterface program.
+ * <p>
+ * A single selector thread serves any number of clients, all sharing the one
+ * open connection to the Roomba, so a client can drop and reconnect without
+ * the serial port being touched.
+ * <p>
+ * It can serve a fleet of Roombas, one per serial port given. Clients talk to
+ * robot 0 unless they ask for another by its number. The robots share the
+ * selector thread and the thread that sends drive commands; each has only its
+ * stream thread to itself.
+ * <p>
+ * Drive setpoints can also be taken as datagrams on a UDP port, so that over
+ * a lossy WiFi link a lost one doesn't hold up those behind it as it would on
+ * TCP. The datagrams are read on the selector thread too, and go to the
+ * connection whose token they start with.
+ * <p>
+ * The sensor frames can be watched from a browser as well, through the
+ * EventStream, which the selector thread also serves.
+ * <p>
+ * Counts of what the server and the serial links are doing are kept in
+ * ServerMetrics and LinkMetrics, and shown by Metrics over JMX and at
+ * http://localhost:4445/metrics.
  */
-public class GuiServer extends ServerSocket {
+public class GuiServer {
 
 	private static ArgumentParser parser = ArgumentParsers.newArgumentParser("roombaserver").description("Roomba Server");
 	private static Namespace parsedArgs;
 
-	GuiServer(int port) throws IOException {
-		super(port);
+	private static final int WAKEUP = 500; // ms the selector waits at most
+	private static final EventLog.Event CONNECTED = EventLog.info(GuiServer.class, "connection made from {}");
+	private static final EventLog.Event CLOSED = EventLog.info(GuiServer.class, "connection closed.");
+	private static final EventLog.Event CLOSE_FAILED = EventLog.warn(GuiServer.class, "closing a connection: {}");
+	private static final EventLog.Event CLIENT_FAILED = EventLog.error(GuiServer.class, "dropping a client: {}");
+	private static final EventLog.Event RESTREAMED = EventLog.info(GuiServer.class, "robot {} streaming packets {}");
+
+	private final Robot[] fleet;
+	private final ScheduledExecutorService driveExecutor;
+	private final Selector selector;
+	private final ServerSocketChannel serverChannel;
+	private final ArrayList<Connection> connections = new ArrayList<Connection>();
+	private final CountDownLatch stopped = new CountDownLatch(1);
+	private final int decimation;
+	private final ServerMetrics metrics = new ServerMetrics();
+	private final Metrics exposed;
+	private DatagramChannel udp; // null unless listenUdp() was called
+	private int udpPort = 0;
+	private final ByteBuffer datagram = ByteBuffer.allocate(Protocol.MAX_FRAME);
+	private final HashMap<Integer, Connection> sessions = new HashMap<Integer, Connection>(); // by token
+	private final SecureRandom random = new SecureRandom();
+	private EventStream events; // null unless serveEvents() was called
+	private volatile boolean running = true;
+
+	/**
+	 * a server for the roombas, robot i being roombas[i], that sends clients
+	 * every decimation'th frame streamed by their robot, so 1 sends them all,
+	 * and drives each robot at most once every drivePeriod ms.
+	 */
+	GuiServer(IRoombaOpenInterface[] roombas, int port, int decimation, int drivePeriod) throws IOException {
+		fleet = new Robot[roombas.length];
+		for (int i = 0; i < roombas.length; i++)
+			fleet[i] = new Robot(i, roombas[i], drivePeriod);
+		driveExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "drive");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.decimation = decimation < 1 ? 1 : decimation;
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		exposed = new Metrics(metrics, fleet);
+		exposed.register();
+	}
+
+	/**
+	 * serves the metrics as plain text on port, on the loopback interface.
+	 */
+	void serveMetrics(int port) throws IOException {
+		exposed.serve(port);
+	}
+
+	/**
+	 * takes drive setpoints as datagrams on port as well - see Protocol.
+	 */
+	void listenUdp(int port) throws IOException {
+		udp = DatagramChannel.open();
+		udp.socket().bind(new InetSocketAddress(port));
+		udp.configureBlocking(false);
+		udp.register(selector, SelectionKey.OP_READ);
+		udpPort = port;
+	}
+
+	/**
+	 * streams the sensor frames to browsers on port - see EventStream.
+	 */
+	void serveEvents(int port) throws IOException {
+		events = new EventStream(selector, port, fleet, metrics);
 	}
 
 	private static void configure(String[] args) throws ArgumentParserException {
-		parser.addArgument("--dummy").action(Arguments.storeTrue());
+		parser.addArgument("--dummy").action(Arguments.storeTrue())
+				.help("drive simulated robots rather than the ones on the serial ports");
+		parser.addArgument("--room").help("the room the simulated robots drive about - see Room");
+		parser.addArgument("--replay").metavar("DIR")
+				.help("replay the recordings in DIR, made with --record, rather than drive robots");
+		parser.addArgument("--speedup").type(Double.class).setDefault(1.0)
+				.help("how many times faster than real time the simulated or replayed robots run");
+		parser.addArgument("--serial").nargs("+").setDefault(Arrays.asList("/dev/ttyAMA0"))
+				.help("the serial port of each robot, robot 0 first");
+		parser.addArgument("--decimate").type(Integer.class).setDefault(1)
+				.help("send clients every n'th frame of sensor data (a frame arrives every 15ms)");
+		parser.addArgument("--drive-period").type(Integer.class).setDefault(DriveScheduler.DEFAULT_PERIOD)
+				.help("ms between drive commands sent to the roomba");
+		parser.addArgument("--record").metavar("DIR")
+				.help("record the sensor stream of each robot to DIR - see TelemetryRecorder");
+		parser.addArgument("--record-rate").type(Integer.class).setDefault(0)
+				.help("frames a second to record at most, 0 for all of them");
+		parser.addArgument("--record-keep").type(Integer.class).setDefault(64)
+				.help("segments of recording to keep for each robot, 16MB each");
+		parser.addArgument("--metrics-port").type(Integer.class).setDefault(4445)
+				.help("the local port to serve metrics on as plain text, 0 for none");
+		parser.addArgument("--udp-port").type(Integer.class).setDefault(0)
+				.help("the port to take drive setpoints on as datagrams, 0 for none");
+		parser.addArgument("--events-port").type(Integer.class).setDefault(0)
+				.help("the port to stream sensor frames to browsers on as Server-Sent Events, 0 for none");
 		parsedArgs = parser.parseArgs(args);
 	}
 
+	/**
+	 * runs the event loop until stop() is called.
+	 */
+	void serve() throws IOException {
+		StreamListener[] listeners = new StreamListener[fleet.length];
+		try {
+			for (int i = 0; i < fleet.length; i++) {
+				final Robot robot = fleet[i];
+				// the stream thread only flags that a frame is in; the
+				// selector thread does the sending
+				listeners[i] = new StreamListener() {
+					int count = 0;
+
+					public void frameReceived(SensorSnapshot snapshot) {
+						if (++count < decimation)
+							return;
+						count = 0;
+						if (!robot.framePending.getAndSet(true))
+							selector.wakeup();
+					}
+				};
+				robot.roomba.addStreamListener(listeners[i]);
+				robot.snapshot = robot.roomba.stream(robot.packets);
+				robot.scheduler.start(driveExecutor);
+			}
+			// the drive thread has time to spare for working out the rates
+			driveExecutor.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					exposed.sample();
+				}
+			}, 1, 1, TimeUnit.SECONDS);
+			while (running) {
+				// wake up now and then, frames or not, to see to the timeouts
+				selector.select(WAKEUP);
+				for (Robot robot : fleet) {
+					if (robot.framePending.getAndSet(false)) {
+						robot.snapshot.copyTo(robot.frame);
+						send(robot);
+					}
+				}
+				handleKeys();
+				if (events != null)
+					events.expire();
+				for (Robot robot : fleet) {
+					robot.expire();
+					if (robot.restream)
+						restream(robot);
+				}
+			}
+		} finally {
+			for (int i = 0; i < fleet.length; i++) {
+				if (listeners[i] != null)
+					fleet[i].roomba.removeStreamListener(listeners[i]);
+				fleet[i].scheduler.stop();
+			}
+			driveExecutor.shutdown();
+			exposed.stop();
+		}
+	}
+
+	/**
+	 * asks the robot to stream what its clients want, if that isn't what it
+	 * is streaming already.
+	 */
+	private void restream(Robot robot) throws IOException {
+		robot.restream = false;
+		int[] union = robot.union();
+		if (Arrays.equals(union, robot.packets))
+			return;
+		robot.packets = union;
+		robot.roomba.stream(union);
+		EventLog.log(RESTREAMED, robot.id, Arrays.toString(union));
+	}
+
+	/**
+	 * sends the robot's frame to the clients talking to it, and the browsers
+	 * watching it.
+	 */
+	private void send(Robot robot) throws IOException {
+		if (events != null)
+			events.send(robot);
+		for (int i = connections.size() - 1; i >= 0; i--) {
+			Connection c = connections.get(i);
+			if (c.robot() != robot)
+				continue;
+			try {
+				c.send(robot.frame);
+			} catch (IOException ex) {
+				close(c);
+			}
+		}
+	}
+
+	private void handleKeys() throws IOException {
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			if (!key.isValid())
+				continue;
+			if (events != null && events.owns(key)) {
+				events.handle(key);
+				continue;
+			}
+			if (key.isAcceptable()) {
+				accept();
+				continue;
+			}
+			if (key.channel() == udp) {
+				receive();
+				continue;
+			}
+			Connection c = (Connection) key.attachment();
+			try {
+				if (key.isReadable() && !c.read()) {
+					close(c);
+					continue;
+				}
+				if (key.isValid() && key.isWritable())
+					c.flush();
+			} catch (IOException ex) {
+				close(c);
+			} catch (RuntimeException ex) {
+				// a bug, but only this client's problem
+				EventLog.log(CLIENT_FAILED, ex);
+				close(c);
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel ch = serverChannel.accept();
+		if (ch == null)
+			return;
+		ch.configureBlocking(false);
+		ch.socket().setTcpNoDelay(true);
+		SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
+		int token = 0;
+		if (udp != null) {
+			do
+				token = random.nextInt();
+			while (token == 0 || sessions.containsKey(token));
+		}
+		Connection c;
+		try {
+			c = new Connection(ch, key, fleet, metrics, token, udpPort);
+		} catch (IOException ex) {
+			key.cancel();
+			ch.close();
+			throw ex;
+		}
+		key.attach(c);
+		connections.add(c);
+		if (udp != null)
+			sessions.put(token, c);
+		metrics.clients.incrementAndGet();
+		metrics.connections.incrementAndGet();
+		EventLog.log(CONNECTED, ch.socket().getRemoteSocketAddress());
+	}
+
+	/**
+	 * reads the datagrams waiting and hands each to the connection it is for,
+	 * if it comes from the same host.
+	 */
+	private void receive() throws IOException {
+		while (true) {
+			datagram.clear();
+			SocketAddress from = udp.receive(datagram);
+			if (from == null)
+				return;
+			datagram.flip();
+			Connection c = null;
+			if (datagram.remaining() >= Protocol.DATAGRAM_HEADER)
+				c = sessions.get(datagram.getInt());
+			if (c == null || !((InetSocketAddress) from).getAddress().equals(c.channel.socket().getInetAddress())) {
+				metrics.datagramsDropped.incrementAndGet();
+				continue;
+			}
+			try {
+				c.datagram(datagram);
+			} catch (IOException ex) {
+				close(c);
+			}
+		}
+	}
+
+	private void close(Connection c) throws IOException {
+		connections.remove(c);
+		sessions.remove(c.token);
+		metrics.clients.decrementAndGet();
+		try {
+			c.close();
+		} catch (IOException ex) {
+			EventLog.log(CLOSE_FAILED, ex);
+		}
+		EventLog.log(CLOSED);
+	}
+
+	/**
+	 * closes the clients and the server socket. The roombas are left to the
+	 * caller.
+	 */
+	void close() {
+		for (Connection c : connections) {
+			try {
+				c.close();
+			} catch (IOException ex) {
+				// nop
+			}
+		}
+		connections.clear();
+		sessions.clear();
+		if (events != null)
+			events.close();
+		try {
+			if (udp != null)
+				udp.close();
+			serverChannel.close();
+			selector.close();
+		} catch (IOException ex) {
+			// nop
+		}
+	}
+
+	/**
+	 * asks the event loop to finish and waits until the server has shut down.
+	 */
+	void stop() {
+		running = false;
+		selector.wakeup();
+		try {
+			stopped.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			// nop
+		}
+	}
+
 	public static void main(String[] args) {
 		try {
 			configure(args);
@@ -43,39 +406,43 @@ public class GuiServer extends ServerSocket {
 			parser.handleError(e);
 			return;
 		}
-		
+
 		GuiServer gs = null;
-		IRoombaOpenInterface roomba = null;
+		List<String> ports = parsedArgs.getList("serial");
+		IRoombaOpenInterface[] roombas = new IRoombaOpenInterface[ports.size()];
 		try {
-			roomba = parsedArgs.getBoolean("dummy") ? new RoombaDummy() : new Roomba("/dev/ttyAMA0");
-			roomba.start();
-			roomba.safe();
-			gs = new GuiServer(4444);
-			System.out.print("Starting socketServer .. ");
-			boolean stop = false;
-			while (!stop) {
-				Socket skt = gs.accept();
-				System.out.println("connection made.");
-				roomba.leds(IRoombaOpenInterface.CHECKROBOT, 0, 0);
-				Thread t1 = new Thread(new DataReader(roomba, skt));
-				Thread t2 = new Thread(new DataWriter(roomba, skt));
-				t1.start();
-				t2.start();
-				t2.join();
-				t1.join();
-				roomba.drive(0, 0);
-				roomba.leds(0, 0, 0);
-				roomba.safe();
-				skt.close();
-				System.out.println("connection closed. Stop server [y/n]?");
-				int yn = System.in.read();
-				System.in.read();// \n
-				if (yn != 'n' && yn != 'N') {
-					stop = true;
-				}
+			for (int i = 0; i < roombas.length; i++) {
+				if (parsedArgs.getString("replay") != null)
+					roombas[i] = new RoombaReplay(new File(parsedArgs.getString("replay")), "robot" + i,
+							parsedArgs.getDouble("speedup"));
+				else if (parsedArgs.getBoolean("dummy"))
+					roombas[i] = new RoombaDummy(parsedArgs.getString("room"), parsedArgs.getDouble("speedup"));
+				else
+					roombas[i] = new Roomba(ports.get(i));
+				if (parsedArgs.getString("record") != null)
+					roombas[i].setRecorder(new TelemetryRecorder(new File(parsedArgs.getString("record")), "robot" + i,
+							TelemetryRecorder.DEFAULT_SEGMENT_SIZE, parsedArgs.getInt("record_keep"),
+							parsedArgs.getInt("record_rate")));
+				roombas[i].start();
+				roombas[i].safe();
 			}
-		} catch (InterruptedException ex) {
-			System.out.println(ex.getMessage());
+			gs = new GuiServer(roombas, 4444, parsedArgs.getInt("decimate"), parsedArgs.getInt("drive_period"));
+			final GuiServer server = gs;
+			if (parsedArgs.getInt("metrics_port") != 0)
+				gs.serveMetrics(parsedArgs.getInt("metrics_port"));
+			if (parsedArgs.getInt("udp_port") != 0)
+				gs.listenUdp(parsedArgs.getInt("udp_port"));
+			if (parsedArgs.getInt("events_port") != 0)
+				gs.serveEvents(parsedArgs.getInt("events_port"));
+			// Ctrl-C is the way to stop the server; the hook makes sure the
+			// serial port is released on the way out.
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				public void run() {
+					server.stop();
+				}
+			}));
+			System.out.println("Starting socketServer .. ");
+			gs.serve();
 		} catch (IOException ex) {
 			System.out.println(ex.getMessage());
 		}
@@ -85,12 +452,15 @@ public class GuiServer extends ServerSocket {
 			if (gs != null)
 				gs.close();
 			System.out.print("shutting down ROI ... ");
-			if (roomba != null) {
-				roomba.disconnect();
+			for (IRoombaOpenInterface roomba : roombas) {
+				if (roomba != null)
+					roomba.disconnect();
 			}
 			System.out.println("done");
-		} catch (IOException ex) {
-			// nop
+		} finally {
+			EventLog.flush();
+			if (gs != null)
+				gs.stopped.countDown();
 		}
 	}
 }
@@ -0,0 +1,74 @@
+package eu.kreativzone.roopie.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts values into power of two buckets: bucket i holds the values up to
+ * 2^i. Recording is a couple of atomic adds, so any thread can record
+ * without locking, and the buckets are good enough for percentiles to within
+ * a factor of two.
+ */
+class Histogram {
+	static final int BUCKETS = 32;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong sum = new AtomicLong();
+
+	void record(long value) {
+		if (value < 0)
+			value = 0;
+		int i = value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1); // the smallest i with value <= 2^i
+		counts.incrementAndGet(Math.min(i, BUCKETS - 1));
+		sum.addAndGet(value);
+	}
+
+	long count() {
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			n += counts.get(i);
+		return n;
+	}
+
+	long sum() {
+		return sum.get();
+	}
+
+	/**
+	 * the upper bound of the bucket the p'th percentile falls in, 0 with
+	 * nothing recorded.
+	 */
+	long percentile(double p) {
+		long n = count();
+		if (n == 0)
+			return 0;
+		long rank = (long) Math.ceil(n * p / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return 1L << i;
+		}
+		return 1L << (BUCKETS - 1);
+	}
+
+	/**
+	 * writes the samples of the histogram in the Prometheus text format, with
+	 * cumulative buckets, as name with the labels (which may be empty). The
+	 * TYPE line is left to the caller, as there may be several histograms
+	 * with the same name.
+	 */
+	void write(StringBuilder b, String name, String labels) {
+		String sep = labels.isEmpty() ? "" : labels + ",";
+		long seen = 0;
+		for (int i = 0; i < BUCKETS - 1; i++) {
+			seen += counts.get(i);
+			b.append(name).append("_bucket{").append(sep).append("le=\"").append(1L << i).append("\"} ").append(seen)
+					.append('\n');
+		}
+		seen += counts.get(BUCKETS - 1);
+		b.append(name).append("_bucket{").append(sep).append("le=\"+Inf\"} ").append(seen).append('\n');
+		Metrics.sample(b, name + "_sum", labels, sum());
+		Metrics.sample(b, name + "_count", labels, seen);
+	}
+}
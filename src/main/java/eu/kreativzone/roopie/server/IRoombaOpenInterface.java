@@ -1,6 +1,7 @@
 package eu.kreativzone.roopie.server;
 
 import java.io.IOException;
+import java.util.concurrent.Future;
 
 import gnu.io.SerialPortEventListener;
 
@@ -174,6 +175,14 @@ public interface IRoombaOpenInterface {
 	 */
 	void drive(int vel, int radius) throws IOException;
 
+	/**
+	 * This command lets you control the forward and backward motion of
+	 * Roomba's drive wheels independently. It takes two integers, the velocity
+	 * of the right and then the left wheel in millimeters per second (-500 to
+	 * 500). A positive velocity makes that wheel drive forward.
+	 */
+	void driveDirect(int right, int left) throws IOException;
+
 	/**
 	 * This command lets you control the raw forward and backward motion of
 	 * Roomba's drive wheels independently. Valid range is -255 to 255. A
@@ -251,6 +260,20 @@ public interface IRoombaOpenInterface {
 	 */
 	int[] sensors(int groupPacketId, int[] results) throws IOException;
 
+	/**
+	 * Like sensors(int, int[]) but without waiting for the answer: the request
+	 * is sent and the future gets the results array once the answer has been
+	 * read. Any number of queries can be in flight at once; the OI answers
+	 * them in the order they were sent. Queries can't be made while a stream
+	 * is running.
+	 */
+	Future<int[]> sensorsAsync(int groupPacketId, int[] results) throws IOException;
+
+	/**
+	 * Reads every sensor, as group packet 100, into frame and returns it.
+	 */
+	SensorFrame sensors(SensorFrame frame) throws IOException;
+
 	/**
 	 * This command lets you ask for a list of sensor packets. The result is
 	 * returned once, as in the Sensors command. The robot returns the packets
@@ -262,18 +285,27 @@ public interface IRoombaOpenInterface {
 	 */
 	int[] queryList(int[] packets, int[] results) throws IOException;
 
+	/**
+	 * Like queryList but without waiting for the answer - see sensorsAsync.
+	 */
+	Future<int[]> queryListAsync(int[] packets, int[] results) throws IOException;
+
 	/**
 	 * This command starts a stream of data packets. The list of packets
 	 * requested is sent every 15ms, which is the rate Roomba uses to update
 	 * data. It is up to the user to ensure that the number of packets can be
 	 * sent in 15ms at the current baud rate - see the ROI specification
-	 * document for details.
+	 * document for details. Group packets can be streamed too: streaming 100
+	 * alone gets every sensor in each frame.
 	 * <p>
-	 * Data is returned in an array, A, where A[x] is the reading on the sensor,
-	 * x, where x = AMPS,ANGLE ... WALL_SIG. Note all sensor values are
-	 * integers, some are signed, some are not; some are two bytes, some are
-	 * one. All are converted to conventional java int values. The returned
-	 * array is internal - don't try and modify or set it.
+	 * Data is returned in a SensorSnapshot, S, where S.get(x) is the reading
+	 * on the sensor, x, where x = AMPS,ANGLE ... WALL_SIG. Note all sensor
+	 * values are integers, some are signed, some are not; some are two bytes,
+	 * some are one. All are converted to conventional java int values, and
+	 * can be read with the SensorFrame accessors the snapshot inherits. The
+	 * returned snapshot is internal and changes with each frame - take a
+	 * consistent copy of it with copyTo(). A StreamListener added with
+	 * addStreamListener is told each time a new frame is in.
 	 * <p>
 	 * Only the last call to the method counts, and a call to stream(new int[0])
 	 * means no packets are sent until stream(...) is called again. A call to
@@ -281,17 +313,41 @@ public interface IRoombaOpenInterface {
 	 * no data is sent from the roomba until pauseResumeStream is called again,
 	 * allowing time for other commands/sensor packets to be sent.
 	 * <p>
-	 * If the data is corrupted, the result will have a non zero value in
-	 * position 0,
+	 * Each good frame gets the next sequence number. If the data is corrupted,
+	 * the frame is dropped and the snapshot's status is set to
 	 * <ol>
 	 * <li>checksum failed
 	 * <li>wrong packet ID (corrupt data - something else causing Roomba to send
 	 * stuff?)
-	 * <li>there was too much data so it probably wasn't sent in the last 15 ms
+	 * <li>not used any more - frames that back up are all decoded, in order
 	 * <li>failed to get the header when expected - syncronizing
 	 * </ol>
+	 * A frame that fails is skipped, and the next good one is found within a
+	 * frame's worth of bytes.
+	 */
+	SensorSnapshot stream(int[] packets) throws IOException; // stream()
+
+	/**
+	 * Register a listener to be told each time a frame of stream data has
+	 * arrived with a good checksum.
+	 */
+	void addStreamListener(StreamListener listener);
+
+	/**
+	 * Remove a listener added with addStreamListener.
+	 */
+	void removeStreamListener(StreamListener listener);
+
+	/**
+	 * The counts of what has gone over the serial link.
+	 */
+	LinkMetrics metrics();
+
+	/**
+	 * Record every frame of stream data from now on, or stop recording if
+	 * recorder is null.
 	 */
-	int[] stream(int[] packets) throws IOException; // stream()
+	void setRecorder(TelemetryRecorder recorder);
 
 	/**
 	 * This command lets you stop and restart the stream without clearing the
@@ -0,0 +1,231 @@
+package eu.kreativzone.roopie.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what goes over one robot's serial link: bytes each way, commands,
+ * query answers and stream frames, with each kind of bad frame the stream
+ * parser finds counted separately, rather than only the last one being left
+ * in the snapshot's status. The threads doing the work count as they go;
+ * sample() works out the rates once a second.
+ */
+class LinkMetrics implements LinkMetricsMBean {
+	final AtomicLong bytesIn = new AtomicLong();
+	final AtomicLong bytesOut = new AtomicLong();
+	final AtomicLong commands = new AtomicLong();
+	final AtomicLong frames = new AtomicLong();
+	final AtomicLong checksumErrors = new AtomicLong();
+	final AtomicLong wrongPacketIds = new AtomicLong();
+	final AtomicLong outOfSync = new AtomicLong();
+	final AtomicLong queries = new AtomicLong();
+	final AtomicLong queryFailures = new AtomicLong();
+	final Histogram frameInterval = new Histogram(); // us
+	private long lastFrame = 0; // only the stream thread uses it
+
+	// sampled
+	private long sampled = System.nanoTime();
+	private long[] last = new long[4];
+	private volatile double bytesInRate;
+	private volatile double bytesOutRate;
+	private volatile double commandRate;
+	private volatile double frameRate;
+
+	/**
+	 * counts n bytes read from the roomba.
+	 */
+	void read(int n) {
+		if (n > 0)
+			bytesIn.addAndGet(n);
+	}
+
+	/**
+	 * counts a command of n bytes sent to the roomba.
+	 */
+	void command(int n) {
+		commands.incrementAndGet();
+		bytesOut.addAndGet(n);
+	}
+
+	/**
+	 * counts a good stream frame that arrived at nanoTime.
+	 */
+	void frame(long nanoTime) {
+		frames.incrementAndGet();
+		if (lastFrame != 0)
+			frameInterval.record(TimeUnit.NANOSECONDS.toMicros(nanoTime - lastFrame));
+		lastFrame = nanoTime;
+	}
+
+	/**
+	 * forgets when the last frame came, as the stream has been paused or
+	 * started again with other packets.
+	 */
+	void restart() {
+		lastFrame = 0;
+	}
+
+	/**
+	 * counts a bad stream frame, by the status the parser gave it.
+	 */
+	void error(int status) {
+		switch (status) {
+		case StreamParser.CHECKSUM:
+			checksumErrors.incrementAndGet();
+			break;
+		case StreamParser.WRONG_ID:
+			wrongPacketIds.incrementAndGet();
+			break;
+		default:
+			outOfSync.incrementAndGet();
+		}
+	}
+
+	/**
+	 * works out the rates since the last call.
+	 */
+	synchronized void sample() {
+		long now = System.nanoTime();
+		double seconds = (now - sampled) / 1e9;
+		if (seconds <= 0)
+			return;
+		long[] counts = { bytesIn.get(), bytesOut.get(), commands.get(), frames.get() };
+		bytesInRate = (counts[0] - last[0]) / seconds;
+		bytesOutRate = (counts[1] - last[1]) / seconds;
+		commandRate = (counts[2] - last[2]) / seconds;
+		frameRate = (counts[3] - last[3]) / seconds;
+		last = counts;
+		sampled = now;
+	}
+
+	// the names the metrics are scraped under, in the order of counters() and
+	// rates()
+	static final String[] COUNTERS = { "roopie_serial_bytes_in_total", "roopie_serial_bytes_out_total",
+			"roopie_serial_commands_total", "roopie_stream_frames_total", "roopie_stream_checksum_errors_total",
+			"roopie_stream_wrong_packet_ids_total", "roopie_stream_out_of_sync_total", "roopie_queries_total",
+			"roopie_query_failures_total" };
+	static final String[] RATES = { "roopie_serial_bytes_in_per_second", "roopie_serial_bytes_out_per_second",
+			"roopie_serial_commands_per_second", "roopie_stream_frames_per_second" };
+
+	long[] counters() {
+		return new long[] { getBytesIn(), getBytesOut(), getCommands(), getFrames(), getChecksumErrors(),
+				getWrongPacketIds(), getOutOfSync(), getQueries(), getQueryFailures() };
+	}
+
+	double[] rates() {
+		return new double[] { getBytesInPerSecond(), getBytesOutPerSecond(), getCommandsPerSecond(),
+				getFramesPerSecond() };
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.LinkMetricsMBean#getBytesIn()
+	 */
+	@Override
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.LinkMetricsMBean#getBytesOut()
+	 */
+	@Override
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.LinkMetricsMBean#getCommands()
+	 */
+	@Override
+	public long getCommands() {
+		return commands.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.LinkMetricsMBean#getFrames()
+	 */
+	@Override
+	public long getFrames() {
+		return frames.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.LinkMetricsMBean#getChecksumErrors()
+	 */
+	@Override
+	public long getChecksumErrors() {
+		return checksumErrors.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.LinkMetricsMBean#getWrongPacketIds()
+	 */
+	@Override
+	public long getWrongPacketIds() {
+		return wrongPacketIds.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.LinkMetricsMBean#getOutOfSync()
+	 */
+	@Override
+	public long getOutOfSync() {
+		return outOfSync.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.LinkMetricsMBean#getQueries()
+	 */
+	@Override
+	public long getQueries() {
+		return queries.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.LinkMetricsMBean#getQueryFailures()
+	 */
+	@Override
+	public long getQueryFailures() {
+		return queryFailures.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.LinkMetricsMBean#getBytesInPerSecond()
+	 */
+	@Override
+	public double getBytesInPerSecond() {
+		return bytesInRate;
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.LinkMetricsMBean#getBytesOutPerSecond()
+	 */
+	@Override
+	public double getBytesOutPerSecond() {
+		return bytesOutRate;
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.LinkMetricsMBean#getCommandsPerSecond()
+	 */
+	@Override
+	public double getCommandsPerSecond() {
+		return commandRate;
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.LinkMetricsMBean#getFramesPerSecond()
+	 */
+	@Override
+	public double getFramesPerSecond() {
+		return frameRate;
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.LinkMetricsMBean#getFrameIntervalP99()
+	 */
+	@Override
+	public long getFrameIntervalP99() {
+		return frameInterval.percentile(99);
+	}
+}
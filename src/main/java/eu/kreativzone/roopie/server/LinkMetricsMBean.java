@@ -0,0 +1,36 @@
+package eu.kreativzone.roopie.server;
+
+/**
+ * What JMX shows of a robot's LinkMetrics. Rates are over the last second.
+ */
+public interface LinkMetricsMBean {
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	long getCommands();
+
+	long getFrames();
+
+	long getChecksumErrors();
+
+	long getWrongPacketIds();
+
+	long getOutOfSync();
+
+	long getQueries();
+
+	long getQueryFailures();
+
+	double getBytesInPerSecond();
+
+	double getBytesOutPerSecond();
+
+	double getCommandsPerSecond();
+
+	double getFramesPerSecond();
+
+	/** the 99th percentile of the time between frames, in us */
+	long getFrameIntervalP99();
+}
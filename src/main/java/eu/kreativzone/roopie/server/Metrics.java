@@ -0,0 +1,139 @@
+package eu.kreativzone.roopie.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Puts the ServerMetrics and the LinkMetrics of every robot on show: as
+ * MBeans under eu.kreativzone.roopie, and as plain text in the Prometheus
+ * format from http://localhost:port/metrics. The scrape endpoint only
+ * listens on the loopback interface and has a thread of its own.
+ */
+class Metrics {
+	static final String DOMAIN = "eu.kreativzone.roopie";
+	private static final EventLog.Event NOT_REGISTERED = EventLog.warn(Metrics.class, "metrics not registered: {}");
+
+	private final ServerMetrics server;
+	private final Robot[] fleet;
+	private HttpServer http = null;
+
+	Metrics(ServerMetrics server, Robot[] fleet) {
+		this.server = server;
+		this.fleet = fleet;
+	}
+
+	/**
+	 * registers the MBeans with the platform MBean server.
+	 */
+	void register() {
+		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		try {
+			mbs.registerMBean(new StandardMBean(server, ServerMetricsMBean.class),
+					new ObjectName(DOMAIN + ":type=Server"));
+			for (Robot robot : fleet)
+				mbs.registerMBean(new StandardMBean(robot.roomba.metrics(), LinkMetricsMBean.class),
+						new ObjectName(DOMAIN + ":type=Link,robot=" + robot.id));
+		} catch (JMException ex) {
+			EventLog.log(NOT_REGISTERED, ex);
+		}
+	}
+
+	/**
+	 * starts the scrape endpoint on port.
+	 */
+	void serve(int port) throws IOException {
+		http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		http.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		http.start();
+	}
+
+	void stop() {
+		if (http != null)
+			http.stop(0);
+	}
+
+	/**
+	 * works out the rates; call it once a second.
+	 */
+	void sample() {
+		server.sample();
+		for (Robot robot : fleet)
+			robot.roomba.metrics().sample();
+	}
+
+	/**
+	 * all the metrics in the Prometheus text format.
+	 */
+	String scrape() {
+		StringBuilder b = new StringBuilder(8192);
+		server.write(b);
+		long[][] counters = new long[fleet.length][];
+		double[][] rates = new double[fleet.length][];
+		for (int r = 0; r < fleet.length; r++) {
+			counters[r] = fleet[r].roomba.metrics().counters();
+			rates[r] = fleet[r].roomba.metrics().rates();
+		}
+		// each metric once, with a line for each robot
+		for (int i = 0; i < LinkMetrics.COUNTERS.length; i++) {
+			type(b, LinkMetrics.COUNTERS[i], "counter");
+			for (int r = 0; r < fleet.length; r++)
+				sample(b, LinkMetrics.COUNTERS[i], robot(r), counters[r][i]);
+		}
+		for (int i = 0; i < LinkMetrics.RATES.length; i++) {
+			type(b, LinkMetrics.RATES[i], "gauge");
+			for (int r = 0; r < fleet.length; r++)
+				sample(b, LinkMetrics.RATES[i], robot(r), rates[r][i]);
+		}
+		type(b, "roopie_stream_frame_interval_us", "histogram");
+		for (int r = 0; r < fleet.length; r++)
+			fleet[r].roomba.metrics().frameInterval.write(b, "roopie_stream_frame_interval_us", robot(r));
+		return b.toString();
+	}
+
+	private String robot(int r) {
+		return "robot=\"" + fleet[r].id + "\"";
+	}
+
+	static void type(StringBuilder b, String name, String type) {
+		b.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	static void sample(StringBuilder b, String name, String labels, Object value) {
+		b.append(name);
+		if (!labels.isEmpty())
+			b.append('{').append(labels).append('}');
+		b.append(' ').append(value).append('\n');
+	}
+
+	static void counter(StringBuilder b, String name, String labels, long value) {
+		type(b, name, "counter");
+		sample(b, name, labels, value);
+	}
+
+	static void gauge(StringBuilder b, String name, String labels, double value) {
+		type(b, name, "gauge");
+		sample(b, name, labels, value);
+	}
+}
@@ -0,0 +1,325 @@
+package eu.kreativzone.roopie.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Roomba 500 as seen down its serial port: it reads Open Interface
+ * commands byte by byte and answers the way the real one does. Sensor
+ * queries (142, 149) are answered at once with the packets sized as the OI
+ * spec has them, and a stream (148) sends a checksummed frame every 15 ms
+ * until paused (150). The commands are parsed to their full length whether
+ * or not they do anything here, so a badly sized command shows up as
+ * garbage, as it would on the robot.
+ * <p>
+ * The robot itself is a SimulatedRobot driving about a Room, so the bumps,
+ * cliffs, light bumps, encoders, distance and angle all come from where it
+ * has got to. As on the robot, a cliff or a wheel drop in safe mode stops it
+ * and drops the OI into passive mode. Time is kept by a VirtualClock, so the
+ * simulation can run many times faster than real time; the stream then
+ * sends a frame per 15 ms of simulated time.
+ */
+class OpenInterfaceDevice {
+	static final int PERIOD = 15; // ms between stream frames
+
+	private static final long PERIOD_NS = TimeUnit.MILLISECONDS.toNanos(PERIOD);
+	private static final int OFF = 0; // OI modes, as packet 35 gives them
+	private static final int PASSIVE = 1;
+	private static final int SAFE = 2;
+	private static final int FULL = 3;
+	private static final long LAG = 100000000; // ns of real time we let the simulation fall behind
+
+	// the packets in each group, as the Roomba class has them
+	private static final int[][] GROUPS = new int[108][];
+
+	static {
+		for (int pid = 0; pid < GROUPS.length; pid++)
+			GROUPS[pid] = Roomba.group(pid);
+	}
+
+	private final SerialPipe in;
+	private final OutputStream out;
+	private final byte[] cmd = new byte[3 + 255 * 2]; // the command being read
+	private int have = 0; // bytes of it read so far
+	private final byte[] reply = new byte[3 + 255 * 81]; // room for any answer
+	private int length = 0; // bytes of it so far
+	private final int[] values = new int[SensorSnapshot.SIZE];
+	private final SimulatedRobot body;
+	private final VirtualClock clock;
+	private int[] stream = null; // the packets being streamed
+	private boolean streaming = false;
+	private int mode = OFF;
+	private double distance = 0; // body.distance when distance was last sent
+	private double angle = 0;
+	private volatile boolean running = true;
+	private Thread thread = null;
+
+	/**
+	 * a device reading commands from in and answering on out, with the robot
+	 * in the room and time kept by the clock.
+	 */
+	OpenInterfaceDevice(SerialPipe in, OutputStream out, Room room, VirtualClock clock) {
+		this.in = in;
+		this.out = out;
+		this.clock = clock;
+		body = new SimulatedRobot(room);
+		body.sense(values);
+		values[22] = 16000; // mV
+		values[24] = 25; // C
+		values[25] = 2500; // mAh
+		values[26] = 3000;
+	}
+
+	void start() {
+		thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					OpenInterfaceDevice.this.run();
+				} catch (IOException ex) {
+					// the host has gone
+				}
+			}
+		}, "oi-device");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void stop() {
+		running = false;
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	private void run() throws IOException {
+		long next = PERIOD_NS;
+		while (running) {
+			if (clock.realDelay(next) < -LAG)
+				clock.rebase(); // we were held up, don't rush to catch up
+			// every tick that is due, then the commands until the next one
+			while (clock.realDelay(next) <= 0) {
+				clock.advanceTo(next);
+				tick();
+				next += PERIOD_NS;
+			}
+			int n = in.read(cmd, have, 1, clock.realDelay(next));
+			if (n < 0)
+				return;
+			if (n > 0 && commandRead(cmd, ++have)) {
+				execute();
+				have = 0;
+			}
+		}
+	}
+
+	/**
+	 * whether the n bytes in cmd make a whole command.
+	 */
+	static boolean commandRead(byte[] cmd, int n) {
+		int opcode = cmd[0] & 0xFF;
+		switch (opcode) {
+		case 129: // baud
+		case 138: // motors
+		case 141: // play
+		case 142: // sensors
+		case 150: // pause/resume stream
+		case 165: // buttons
+			return n == 2;
+		case 139: // leds
+		case 144: // pwm motors
+		case 168: // set day/time
+			return n == 4;
+		case 137: // drive
+		case 145: // drive direct
+		case 146: // drive pwm
+		case 163: // digit leds raw
+		case 164: // digit leds ascii
+			return n == 5;
+		case 167: // schedule
+			return n == 16;
+		case 140: // song: number, length, then length notes and durations
+			return n >= 3 && n == 3 + 2 * (cmd[2] & 0xFF);
+		case 148: // stream
+		case 149: // query list
+			return n >= 2 && n == 2 + (cmd[1] & 0xFF);
+		default:
+			return true;
+		}
+	}
+
+	private void execute() throws IOException {
+		int opcode = cmd[0] & 0xFF;
+		if (mode == OFF && opcode != 128)
+			return; // the OI isn't listening yet
+		switch (opcode) {
+		case 128: // start
+		case 133: // power
+		case 134: // spot
+		case 135: // clean
+		case 136: // max
+		case 143: // seek dock
+			mode = PASSIVE;
+			drive(0, 0);
+			break;
+		case 131:
+			mode = SAFE;
+			break;
+		case 132:
+			mode = FULL;
+			break;
+		case 173: // stop
+			mode = OFF;
+			streaming = false;
+			drive(0, 0);
+			break;
+		case 137:
+			if (mode != PASSIVE)
+				drive(s16(1), s16(3));
+			break;
+		case 145:
+			if (mode != PASSIVE)
+				driveDirect(s16(1), s16(3));
+			break;
+		case 146: // pwm, -255 to 255, taken as a share of top speed
+			if (mode != PASSIVE)
+				driveDirect(s16(1) * 500 / 255, s16(3) * 500 / 255);
+			break;
+		case 142:
+			length = 0;
+			put(cmd[1] & 0xFF);
+			out.write(reply, 0, length);
+			break;
+		case 149:
+			length = 0;
+			for (int i = 0; i < (cmd[1] & 0xFF); i++)
+				put(cmd[2 + i] & 0xFF);
+			out.write(reply, 0, length);
+			break;
+		case 148:
+			stream = new int[cmd[1] & 0xFF];
+			for (int i = 0; i < stream.length; i++)
+				stream[i] = cmd[2 + i] & 0xFF;
+			streaming = true;
+			break;
+		case 150:
+			streaming = cmd[1] != 0 && stream != null;
+			break;
+		default:
+			// leds, songs and the like: nothing to see here
+		}
+	}
+
+	private int s16(int i) {
+		return Roomba.two2signed(cmd[i], cmd[i + 1]);
+	}
+
+	private void drive(int vel, int radius) {
+		values[IRoombaOpenInterface.REQ_VELOCITY] = vel;
+		values[IRoombaOpenInterface.REQ_RADIUS] = radius;
+		int right;
+		int left;
+		if (radius == 32767 || radius == -32768 || radius == 0) {
+			right = left = vel; // straight
+		} else if (radius == -1) {
+			right = -vel; // spin clockwise
+			left = vel;
+		} else if (radius == 1) {
+			right = vel;
+			left = -vel;
+		} else {
+			right = (int) (vel * (radius + SimulatedRobot.WHEEL_BASE / 2) / radius);
+			left = (int) (vel * (radius - SimulatedRobot.WHEEL_BASE / 2) / radius);
+		}
+		wheels(right, left);
+	}
+
+	private void driveDirect(int right, int left) {
+		values[IRoombaOpenInterface.REQ_VELOCITY] = (right + left) / 2;
+		values[IRoombaOpenInterface.REQ_RADIUS] = right == left ? 32767 : 0;
+		wheels(right, left);
+	}
+
+	private void wheels(int right, int left) {
+		body.right = Math.max(-500, Math.min(500, right));
+		body.left = Math.max(-500, Math.min(500, left));
+		values[IRoombaOpenInterface.REQ_VELOCITY_R] = body.right;
+		values[IRoombaOpenInterface.REQ_VELOCITY_L] = body.left;
+	}
+
+	/**
+	 * moves the world on one period, and streams a frame if we are streaming.
+	 */
+	private void tick() throws IOException {
+		body.step(PERIOD / 1000.0);
+		body.sense(values);
+		if (mode == SAFE && (body.fallen || body.right + body.left > 0 && cliff())) {
+			mode = PASSIVE; // the OI's own safety net
+			wheels(0, 0);
+		}
+		values[IRoombaOpenInterface.MODE] = mode;
+		if (!streaming)
+			return;
+		reply[0] = (byte) StreamParser.HEADER;
+		length = 2;
+		for (int i = 0; i < stream.length; i++) {
+			reply[length++] = (byte) stream[i];
+			put(stream[i]);
+		}
+		reply[1] = (byte) (length - 2);
+		int sum = 0;
+		for (int i = 0; i < length; i++)
+			sum += reply[i];
+		reply[length++] = (byte) -sum;
+		out.write(reply, 0, length);
+	}
+
+	private boolean cliff() {
+		for (int i = 0; i < 4; i++)
+			if (body.cliff(i))
+				return true;
+		return false;
+	}
+
+	/**
+	 * the number of bytes in packet pid, from the table the Roomba class
+	 * decodes with; 0 if there is no such packet or it is a group.
+	 */
+	static int size(int pid) {
+		if (pid >= Roomba.pktTable.length || group(pid) != null)
+			return 0;
+		return Math.abs(Roomba.pktTable[pid]);
+	}
+
+	/**
+	 * the packets in group pid, or null if it isn't a group.
+	 */
+	static int[] group(int pid) {
+		return pid < GROUPS.length ? GROUPS[pid] : null;
+	}
+
+	/**
+	 * adds the bytes of packet pid, or of every packet in the group, to the
+	 * reply.
+	 */
+	private void put(int pid) {
+		int[] g = group(pid);
+		if (g != null) {
+			for (int p : g)
+				put(p);
+			return;
+		}
+		int value = pid < values.length ? values[pid] : 0;
+		if (pid == IRoombaOpenInterface.DISTANCE) {
+			value = (int) (body.distance - distance);
+			distance += value;
+		} else if (pid == IRoombaOpenInterface.ANGLE) {
+			value = (int) (body.angle - angle);
+			angle += value;
+		}
+		int size = size(pid);
+		if (size == 2)
+			reply[length++] = (byte) (value >> 8);
+		if (size > 0)
+			reply[length++] = (byte) value;
+	}
+}
@@ -0,0 +1,177 @@
+package eu.kreativzone.roopie.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matches the responses to sensor queries (opcodes 142 and 149) with the
+ * queries that asked for them, so that any number can be in flight at once.
+ * The OI answers in the order it was asked and the size of each answer is
+ * known from pktTable, so a thread of our own reads the answers off the serial
+ * port in turn and completes each query's future.
+ * <p>
+ * If an answer doesn't arrive within Roomba.TIMEOUT_VALUE there's no telling
+ * which bytes belong to which query any more, so every query in flight fails.
+ */
+class QueryEngine {
+
+	private static final class Query {
+		final int[] pids; // the packets in the answer, in order
+		final int[] slots; // where each one goes in results
+		final int[] results;
+		final int size; // bytes in the answer
+		final CompletableFuture<int[]> future = new CompletableFuture<int[]>();
+
+		Query(int[] pids, int[] slots, int[] results) {
+			this.pids = pids;
+			this.slots = slots;
+			this.results = results;
+			size = size(pids);
+		}
+	}
+
+	private final InputStream in;
+	private final LinkMetrics metrics;
+	private final ArrayDeque<Query> pending = new ArrayDeque<Query>();
+	private final byte[] buf = new byte[2 * 255]; // only the reader thread uses it
+	private Thread reader = null;
+	private boolean closed = false;
+
+	QueryEngine(InputStream in, LinkMetrics metrics) {
+		this.in = in;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * the number of bytes the OI sends for these packets.
+	 */
+	static int size(int[] pids) {
+		int n = 0;
+		for (int i = 0; i < pids.length; i++) {
+			int z = pids[i] < Roomba.pktTable.length ? Roomba.pktTable[pids[i]] : 0;
+			if (z == 0)
+				throw new RuntimeException("sensors(int) returns a single value, use sensor(int, int[])");
+			n += z < 0 ? -z : z;
+		}
+		return n;
+	}
+
+	/**
+	 * adds a query that has just been sent, returning the future that will get
+	 * the results. The caller must hold the lock it sends commands under, so
+	 * queries are added in the order they went out.
+	 */
+	synchronized CompletableFuture<int[]> expect(int[] pids, int[] slots, int[] results) {
+		Query q = new Query(pids, slots, results);
+		if (closed) {
+			q.future.completeExceptionally(new IOException("serial connection closed"));
+			return q.future;
+		}
+		pending.add(q);
+		metrics.queries.incrementAndGet();
+		if (reader == null) {
+			reader = new Thread(new Runnable() {
+				public void run() {
+					read();
+				}
+			}, "query");
+			reader.setDaemon(true);
+			reader.start();
+		}
+		notifyAll();
+		return q.future;
+	}
+
+	/**
+	 * fails anything still in flight and stops the reader thread.
+	 */
+	synchronized void close() {
+		closed = true;
+		failAll(new IOException("serial connection closed"));
+		notifyAll();
+	}
+
+	private synchronized void failAll(IOException ex) {
+		Query q;
+		while ((q = pending.poll()) != null) {
+			q.future.completeExceptionally(ex);
+			metrics.queryFailures.incrementAndGet();
+		}
+	}
+
+	private void read() {
+		while (true) {
+			Query q;
+			synchronized (this) {
+				while (pending.isEmpty() && !closed)
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				if (closed)
+					return;
+				q = pending.peek();
+			}
+			try {
+				readFully(q.size);
+				int off = 0;
+				for (int i = 0; i < q.pids.length; i++) {
+					q.results[q.slots[i]] = decode(q.pids[i], off);
+					int z = Roomba.pktTable[q.pids[i]];
+					off += z < 0 ? -z : z;
+				}
+				synchronized (this) {
+					pending.poll();
+				}
+				q.future.complete(q.results);
+			} catch (IOException ex) {
+				failAll(ex);
+				try {
+					in.skip(in.available()); // whatever it was, it's no use now
+				} catch (IOException e) {
+					// nop
+				}
+			}
+		}
+	}
+
+	/**
+	 * reads exactly len bytes into buf. The port's receive timeout has each
+	 * read return as soon as there is any data, so this takes as long as the
+	 * bytes take to arrive, giving up after TIMEOUT_VALUE.
+	 */
+	private void readFully(int len) throws IOException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Roomba.TIMEOUT_VALUE);
+		int off = 0;
+		while (off < len) {
+			int n = in.read(buf, off, len - off);
+			if (n < 0)
+				throw new EOFException("serial connection closed");
+			off += n;
+			metrics.read(n);
+			if (off < len && System.nanoTime() - deadline > 0)
+				throw new IOException("serial connection time out");
+		}
+	}
+
+	/**
+	 * decodes the value of packet pid from buf at i.
+	 */
+	private int decode(int pid, int i) {
+		switch (Roomba.pktTable[pid]) {
+		case -2:
+			return Roomba.two2signed(buf[i], buf[i + 1]);
+		case 2:
+			return Roomba.two2unsigned(buf[i], buf[i + 1]);
+		case -1:
+			return Roomba.one2signed(buf[i]);
+		default:
+			return Roomba.one2unsigned(buf[i]);
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package eu.kreativzone.roopie.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Roomba that only plays back a recording. Once it is asked to stream, it
+ * sends the recorded frames down the serial line as OI stream frames, spaced
+ * as they were recorded, or closer together by the VirtualClock's speedup.
+ * A gap of more than a few stream periods between records - a pause, or the
+ * join between segments recorded by different runs, whose nanoTimes have
+ * nothing to do with each other - is played as a single period.
+ * Frames that failed when they were recorded fail again: a checksum failure
+ * is sent with a bad checksum, and losing sync as a stray byte. Sensor
+ * queries get the latest recorded values. Every other command is logged and
+ * otherwise ignored - nothing can change what was recorded.
+ * <p>
+ * How fast the frames are going out is reported every few seconds, and when
+ * the recording runs out.
+ */
+class ReplayDevice {
+	private static final long REPORT = TimeUnit.SECONDS.toNanos(5); // real time between reports
+	private static final long IDLE = 100; // ms to wait for commands when not streaming
+	private static final long PERIOD = TimeUnit.MILLISECONDS.toNanos(OpenInterfaceDevice.PERIOD);
+	private static final long GAP = 4 * PERIOD; // the longest gap between records played as it was
+	private static final EventLog.Event IGNORED = EventLog.info(ReplayDevice.class, "replay: not executing{}");
+	private static final EventLog.Event REPORTED = EventLog.info(ReplayDevice.class, "replay {}");
+
+	private final SerialPipe in;
+	private final OutputStream out;
+	private final TelemetryReader recording;
+	private final VirtualClock clock;
+	private final byte[] cmd = new byte[3 + 255 * 2];
+	private int have = 0;
+	private final byte[] reply = new byte[3 + 255 * 81];
+	private int length = 0;
+	private int[] stream = null;
+	private boolean streaming = false;
+	private boolean loaded = false; // the record to send next has been read
+	private boolean done = false; // the recording has run out
+	private boolean first = true; // no record has been read yet
+	private long last = 0; // nanoTime of the record before, as recorded
+	private long played = 0; // virtual time to send the loaded record at
+	private long frames = 0;
+	private long started = 0; // real time we started streaming
+	private long reported = 0;
+	private volatile boolean running = true;
+	private Thread thread = null;
+
+	ReplayDevice(SerialPipe in, OutputStream out, TelemetryReader recording, VirtualClock clock) {
+		this.in = in;
+		this.out = out;
+		this.recording = recording;
+		this.clock = clock;
+	}
+
+	void start() {
+		thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					ReplayDevice.this.run();
+				} catch (IOException ex) {
+					// the host has gone
+				}
+			}
+		}, "replay");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void stop() {
+		running = false;
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	private void run() throws IOException {
+		while (running) {
+			long wait = TimeUnit.MILLISECONDS.toNanos(IDLE);
+			long t = 0;
+			if (streaming && !done) {
+				if (!loaded)
+					load();
+				if (loaded) {
+					t = played;
+					wait = clock.realDelay(t);
+				}
+			}
+			if (wait > 0) {
+				int n = in.read(cmd, have, 1, wait);
+				if (n < 0)
+					return;
+				if (n > 0 && OpenInterfaceDevice.commandRead(cmd, ++have)) {
+					execute();
+					have = 0;
+				}
+				continue;
+			}
+			clock.advanceTo(t);
+			send();
+			loaded = false;
+		}
+	}
+
+	/**
+	 * reads the next record, noting if there are no more.
+	 */
+	private void load() throws IOException {
+		if (!recording.next()) {
+			done = true;
+			report("finished");
+			return;
+		}
+		if (first) {
+			first = false;
+			clock.rebase(); // the recording starts now
+		} else {
+			long gap = recording.nanoTime - last;
+			played += gap >= 0 && gap <= GAP ? gap : PERIOD;
+		}
+		last = recording.nanoTime;
+		loaded = true;
+	}
+
+	private void execute() throws IOException {
+		int opcode = cmd[0] & 0xFF;
+		switch (opcode) {
+		case 142:
+			length = 0;
+			put(cmd[1] & 0xFF);
+			out.write(reply, 0, length);
+			break;
+		case 149:
+			length = 0;
+			for (int i = 0; i < (cmd[1] & 0xFF); i++)
+				put(cmd[2 + i] & 0xFF);
+			out.write(reply, 0, length);
+			break;
+		case 148:
+			stream = new int[cmd[1] & 0xFF];
+			for (int i = 0; i < stream.length; i++)
+				stream[i] = cmd[2 + i] & 0xFF;
+			resume();
+			break;
+		case 150:
+			if (cmd[1] == 0)
+				streaming = false;
+			else if (stream != null)
+				resume();
+			break;
+		default:
+			StringBuilder b = new StringBuilder();
+			for (int i = 0; i < have; i++)
+				b.append(' ').append(cmd[i] & 0xFF);
+			EventLog.log(IGNORED, b.toString());
+		}
+	}
+
+	private void resume() {
+		if (!streaming) {
+			streaming = true;
+			started = reported = System.nanoTime();
+			frames = 0;
+			clock.rebase(); // carry on from where we were, not from when we paused
+		}
+	}
+
+	/**
+	 * sends the record just read as it came from the roomba.
+	 */
+	private void send() throws IOException {
+		if (recording.status == StreamParser.OUT_OF_SYNC || recording.status == StreamParser.WRONG_ID) {
+			reply[0] = 0; // something that isn't a frame
+			out.write(reply, 0, 1);
+			return;
+		}
+		reply[0] = (byte) StreamParser.HEADER;
+		length = 2;
+		for (int i = 0; i < stream.length; i++) {
+			reply[length++] = (byte) stream[i];
+			put(stream[i]);
+		}
+		reply[1] = (byte) (length - 2);
+		int sum = 0;
+		for (int i = 0; i < length; i++)
+			sum += reply[i];
+		reply[length++] = (byte) (recording.status == StreamParser.OK ? -sum : 1 - sum);
+		out.write(reply, 0, length);
+		if (recording.status == StreamParser.OK)
+			frames++;
+		if (System.nanoTime() - reported > REPORT) {
+			reported = System.nanoTime();
+			report("running");
+		}
+	}
+
+	private void report(String what) {
+		double seconds = (System.nanoTime() - started) / 1e9;
+		double recorded = played / 1e9;
+		EventLog.log(REPORTED, String.format("%s: %d frames, %.1fs of recording in %.1fs, %.0f frames/s", what,
+				frames, recorded, seconds, frames / seconds));
+	}
+
+	/**
+	 * adds the latest recorded bytes of packet pid, or of every packet in the
+	 * group, to the reply.
+	 */
+	private void put(int pid) {
+		int[] g = OpenInterfaceDevice.group(pid);
+		if (g != null) {
+			for (int p : g)
+				put(p);
+			return;
+		}
+		int value = pid < recording.values.length ? recording.values[pid] : 0;
+		int size = OpenInterfaceDevice.size(pid);
+		if (size == 2)
+			reply[length++] = (byte) (value >> 8);
+		if (size > 0)
+			reply[length++] = (byte) value;
+	}
+}
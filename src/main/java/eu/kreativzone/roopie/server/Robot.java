@@ -0,0 +1,149 @@
+package eu.kreativzone.roopie.server;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One of the Roombas served by the GuiServer, with what the server keeps for
+ * it: its drive scheduler, the frame being sent to its clients and how many
+ * clients it has. Apart from the stream listener everything here runs on the
+ * selector thread.
+ * <p>
+ * Any number of clients can watch a robot, but only one at a time drives it:
+ * the first to send a command takes the lease, and keeps it until it goes or
+ * has sent nothing for LEASE - DRIVING_LEASE while the wheels are set going,
+ * which a client holding the stick steady renews by repeating its setpoint.
+ * A driver that goes quiet with the wheels going has them stopped by
+ * expire(), and loses the lease. Commands from the others are ignored,
+ * except a stop. The OI mode the robot is in, and whether it has been set moving, are kept here
+ * rather than with the client, so whoever takes the lease next knows them.
+ * <p>
+ * Each client says which packets it wants. The robot streams the union of
+ * them, or the light bumps if there are no clients, and restream is set when
+ * the union may have changed so the GuiServer can send a new Stream command.
+ */
+class Robot {
+	private static final EventLog.Event LAPSED = EventLog.warn(Robot.class,
+			"robot {} stopped, its driver has sent nothing while it was moving");
+
+	final int id;
+	final IRoombaOpenInterface roomba;
+	final DriveScheduler scheduler;
+	final SensorSnapshot frame = new SensorSnapshot(); // the one being sent
+	final AtomicBoolean framePending = new AtomicBoolean();
+	SensorSnapshot snapshot = null; // the live one, once streaming
+	private int clients = 0;
+	static final long LEASE = TimeUnit.SECONDS.toNanos(5); // how long control is kept without a command
+	static final long DRIVING_LEASE = TimeUnit.SECONDS.toNanos(15); // the same, with the wheels going
+	private DataReader controller = null; // the client with the lease
+	private long renewed; // nanoTime of its last command
+	static final int SAFE = 0;
+	static final int PASSIVE = 1;
+	int mode = SAFE; // the OI mode the clients have put it in
+	boolean driving = false; // the controller has set the wheels going
+	private final int[] demand = new int[SensorFrame.SIZE]; // clients wanting each packet
+	int[] packets = DataWriter.PACKETS; // being streamed
+	boolean restream = false; // demand has changed since packets was set
+
+	Robot(int id, IRoombaOpenInterface roomba, int drivePeriod) {
+		this.id = id;
+		this.roomba = roomba;
+		scheduler = new DriveScheduler(roomba, drivePeriod);
+	}
+
+	/**
+	 * a client has started talking to this robot.
+	 */
+	void attach() throws IOException {
+		if (clients++ == 0)
+			roomba.leds(IRoombaOpenInterface.CHECKROBOT, 0, 0);
+	}
+
+	/**
+	 * a client wants packets.
+	 */
+	void subscribe(int[] packets) {
+		for (int pid : packets)
+			if (demand[pid]++ == 0)
+				restream = true;
+	}
+
+	/**
+	 * a client no longer wants packets.
+	 */
+	void unsubscribe(int[] packets) {
+		for (int pid : packets)
+			if (--demand[pid] == 0)
+				restream = true;
+	}
+
+	/**
+	 * the packets wanted by at least one client, in order, or the light bumps
+	 * if none are.
+	 */
+	int[] union() {
+		int n = 0;
+		for (int pid = 0; pid < demand.length; pid++)
+			if (demand[pid] > 0)
+				n++;
+		if (n == 0)
+			return DataWriter.PACKETS;
+		int[] union = new int[n];
+		n = 0;
+		for (int pid = 0; pid < demand.length; pid++)
+			if (demand[pid] > 0)
+				union[n++] = pid;
+		return union;
+	}
+
+	/**
+	 * whether the client may drive the robot: it has the lease, or takes it
+	 * as nobody else holds it. Each call renews the lease.
+	 */
+	boolean lease(DataReader client) {
+		long now = System.nanoTime();
+		if (controller != client && controller != null && now - renewed < (driving ? DRIVING_LEASE : LEASE))
+			return false;
+		controller = client;
+		renewed = now;
+		return true;
+	}
+
+	/**
+	 * gives the lease up, if the client has it. Returns false if it hadn't.
+	 */
+	boolean release(DataReader client) {
+		if (controller != client)
+			return false;
+		controller = null;
+		return true;
+	}
+
+	/**
+	 * stops the wheels and frees the lease if the wheels are going and the
+	 * driver has sent nothing for DRIVING_LEASE. The selector thread calls
+	 * this every time round.
+	 */
+	void expire() {
+		if (controller != null && driving && System.nanoTime() - renewed >= DRIVING_LEASE) {
+			scheduler.drive(0, 0);
+			driving = false;
+			controller = null;
+			EventLog.log(LAPSED, id);
+		}
+	}
+
+	/**
+	 * a client has gone. When the last one goes the robot is stopped.
+	 */
+	void detach() throws IOException {
+		if (--clients == 0) {
+			scheduler.drive(0, 0);
+			driving = false;
+			roomba.leds(0, 0, 0);
+			roomba.safe();
+			mode = SAFE;
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package eu.kreativzone.roopie.server;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+
+/**
+ * The floor plan the simulated robot drives around in: a rectangular room
+ * with boxes standing in it, which it bumps into, and cliffs, which its
+ * cliff sensors see. All in mm, with the origin in a corner of the room.
+ * <p>
+ * A room is read from a text file with one thing per line:
+ *
+ * <pre>
+ * room  width height
+ * box   x y width height
+ * cliff x y width height
+ * start x y heading     (heading in degrees, 0 along x, anticlockwise)
+ * </pre>
+ *
+ * Anything after a # is a comment.
+ */
+class Room {
+	static final String DEFAULT = "room 5000 4000\n" //
+			+ "box 2000 1500 800 600 # a table\n" //
+			+ "cliff 4200 0 800 1200 # the stairs\n" //
+			+ "start 1000 1000 0\n";
+
+	double width = 0;
+	double height = 0;
+	final ArrayList<double[]> boxes = new ArrayList<double[]>(); // x, y, width, height
+	final ArrayList<double[]> cliffs = new ArrayList<double[]>();
+	double startX = 0;
+	double startY = 0;
+	double startHeading = 0; // radians
+
+	/**
+	 * the room described in file, or the default room if file is null.
+	 */
+	static Room load(String file) throws IOException {
+		Reader r = file == null ? new StringReader(DEFAULT) : new FileReader(file);
+		try {
+			return read(r);
+		} finally {
+			r.close();
+		}
+	}
+
+	static Room read(Reader reader) throws IOException {
+		Room room = new Room();
+		BufferedReader in = new BufferedReader(reader);
+		String line;
+		int n = 0;
+		while ((line = in.readLine()) != null) {
+			n++;
+			int hash = line.indexOf('#');
+			if (hash >= 0)
+				line = line.substring(0, hash);
+			line = line.trim();
+			if (line.isEmpty())
+				continue;
+			String[] w = line.split("\\s+");
+			try {
+				if (w[0].equals("room") && w.length == 3) {
+					room.width = Double.parseDouble(w[1]);
+					room.height = Double.parseDouble(w[2]);
+				} else if (w[0].equals("box") && w.length == 5) {
+					room.boxes.add(rect(w));
+				} else if (w[0].equals("cliff") && w.length == 5) {
+					room.cliffs.add(rect(w));
+				} else if (w[0].equals("start") && w.length == 4) {
+					room.startX = Double.parseDouble(w[1]);
+					room.startY = Double.parseDouble(w[2]);
+					room.startHeading = Math.toRadians(Double.parseDouble(w[3]));
+				} else {
+					throw new IOException("room line " + n + " not understood: " + line);
+				}
+			} catch (NumberFormatException e) {
+				throw new IOException("room line " + n + " has a bad number: " + line);
+			}
+		}
+		if (room.width <= 0 || room.height <= 0)
+			throw new IOException("the room has no size");
+		return room;
+	}
+
+	private static double[] rect(String[] w) {
+		return new double[] { Double.parseDouble(w[1]), Double.parseDouble(w[2]), Double.parseDouble(w[3]),
+				Double.parseDouble(w[4]) };
+	}
+
+	/**
+	 * how far a circle of radius r at (x, y) is from touching a wall or a box.
+	 * Negative if it overlaps one.
+	 */
+	double clearance(double x, double y, double r) {
+		double d = Math.min(Math.min(x, width - x), Math.min(y, height - y));
+		for (double[] b : boxes) {
+			double dx = Math.max(Math.max(b[0] - x, x - (b[0] + b[2])), 0);
+			double dy = Math.max(Math.max(b[1] - y, y - (b[1] + b[3])), 0);
+			double inside = Math.max(Math.max(b[0] - x, x - (b[0] + b[2])), Math.max(b[1] - y, y - (b[1] + b[3])));
+			d = Math.min(d, inside < 0 ? inside : Math.sqrt(dx * dx + dy * dy));
+		}
+		return d - r;
+	}
+
+	/**
+	 * the distance from (x, y) along the ray at angle a to the nearest wall or
+	 * box.
+	 */
+	double ray(double x, double y, double a) {
+		double cx = Math.cos(a);
+		double cy = Math.sin(a);
+		// leaving the room
+		double d = Math.min(exit(x, cx, width), exit(y, cy, height));
+		for (double[] b : boxes)
+			d = Math.min(d, hit(x, y, cx, cy, b));
+		return d;
+	}
+
+	private static double exit(double p, double c, double size) {
+		if (c > 0)
+			return (size - p) / c;
+		if (c < 0)
+			return -p / c;
+		return Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * where the ray from (x, y) in direction (cx, cy) enters the box, by the
+	 * slab method.
+	 */
+	private static double hit(double x, double y, double cx, double cy, double[] b) {
+		double near = 0;
+		double far = Double.POSITIVE_INFINITY;
+		double[] p = { x, y };
+		double[] c = { cx, cy };
+		for (int i = 0; i < 2; i++) {
+			double lo = b[i];
+			double hi = b[i] + b[i + 2];
+			if (c[i] == 0) {
+				if (p[i] < lo || p[i] > hi)
+					return Double.POSITIVE_INFINITY;
+				continue;
+			}
+			double t1 = (lo - p[i]) / c[i];
+			double t2 = (hi - p[i]) / c[i];
+			near = Math.max(near, Math.min(t1, t2));
+			far = Math.min(far, Math.max(t1, t2));
+		}
+		return near <= far ? near : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * whether there is no floor at (x, y).
+	 */
+	boolean cliff(double x, double y) {
+		if (x < 0 || y < 0 || x > width || y > height)
+			return true;
+		for (double[] c : cliffs)
+			if (x >= c[0] && x <= c[0] + c[2] && y >= c[1] && y <= c[1] + c[3])
+				return true;
+		return false;
+	}
+}
@@ -2,6 +2,9 @@ package eu.kreativzone.roopie.server;
 
 import gnu.io.*;
 import java.io.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Implements the Roomba Open Interface to the 500 series using RXTX. The
@@ -15,21 +18,38 @@ import java.io.*;
  * <a href="http://rxtx.qbang.org/wiki/index.php/Main_Page" >http://rxtx.qbang.
  * org/wiki/index.php/Main_Page</a>.
  *
+ * <p>
+ * The commands are synchronized, so different threads can send them without
+ * their bytes getting mixed up on the serial line.
+ *
  * @author peter wallis
  */
 
 public class Roomba implements IRoombaOpenInterface {
 
 	public static final int TIMEOUT_VALUE = 1000; // 1 second
+	// how long a read of the serial port waits for data before returning
+	// empty handed
+	static final int READ_TIMEOUT = 100;
 
 	// table of bytes returned for each packet, and its sign
-	private static final short[] pktTable = new short[70];
+	static final short[] pktTable = new short[SensorFrame.SIZE];
+	private static final EventLog.Event STREAM_FAILED = EventLog.warn(Roomba.class, "reading the stream");
+	private static final EventLog.Event FAILED = EventLog.warn(Roomba.class, "{}");
+	private static final EventLog.Event STREAM_ENDED = EventLog.error(Roomba.class, "the serial line has closed, streaming stopped");
 
 	private SerialPort serialPort;
 	private OutputStream outStream;
+	// commands are put together here and sent in one write. Only touch it
+	// holding the lock on this.
+	private final byte[] cmd = new byte[2 + 255];
+	private QueryEngine queries;
 	private InputStream inStream;
-	protected int[] streamData = null; // see stream below
-	protected int[] newPktList = null;
+	protected SensorSnapshot snapshot = null; // see stream below. Guarded by this
+	protected volatile StreamPlan newPlan = null;
+	private final CopyOnWriteArrayList<StreamListener> streamListeners = new CopyOnWriteArrayList<StreamListener>();
+	private volatile TelemetryRecorder recorder = null;
+	private final LinkMetrics metrics = new LinkMetrics();
 
 	public Roomba(String portName) throws IOException {
 		try {
@@ -45,9 +65,12 @@ public class Roomba implements IRoombaOpenInterface {
 					SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
 
 			serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_NONE);
+			// reads return as soon as there is data, rather than us polling
+			// available()
+			serialPort.enableReceiveTimeout(READ_TIMEOUT);
 			outStream = serialPort.getOutputStream();
 			inStream = serialPort.getInputStream();
-			initPacketSpec();
+			queries = new QueryEngine(inStream, metrics);
 		} catch (NoSuchPortException e) {
 			throw new IOException(e.getMessage());
 		} catch (PortInUseException e) {
@@ -60,17 +83,30 @@ public class Roomba implements IRoombaOpenInterface {
 		}
 	}
 
+	/**
+	 * a Roomba at the other end of a pair of streams rather than a serial
+	 * port, for benchmarks and simulators. Reads of in should give up after
+	 * READ_TIMEOUT, as the port's do.
+	 */
+	Roomba(InputStream in, OutputStream out) {
+		inStream = in;
+		outStream = out;
+		queries = new QueryEngine(in, metrics);
+	}
+
 	/* (non-Javadoc)
 	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#addDataAvailableEventHandler(gnu.io.SerialPortEventListener)
 	 */
 	@Override
 	public void addDataAvailableEventHandler(SerialPortEventListener eventHandler) {
+		if (serialPort == null)
+			return; // not on a serial port
 		try {
 			// Add the serial port event listener
 			serialPort.addEventListener(eventHandler);
 			serialPort.notifyOnDataAvailable(true);
 		} catch (java.util.TooManyListenersException ex) {
-			System.err.println(ex.getMessage());
+			EventLog.log(FAILED, ex);
 		}
 	}
 
@@ -85,6 +121,7 @@ public class Roomba implements IRoombaOpenInterface {
 		try {
 			stream(null); // *** see above.
 			passive(); // turn the green light back on
+			queries.close();
 			if (outStream != null)
 				outStream.close();
 			if (inStream != null)
@@ -92,36 +129,16 @@ public class Roomba implements IRoombaOpenInterface {
 			if (serialPort != null)
 				serialPort.close();
 		} catch (IOException ex) {
-			System.err.println(ex.toString());
-		}
-	}
-
-	/**
-	 * waits until the specified number of bytes can be read from the serial
-	 * port or TIMEOUT_VALUE is reached.
-	 */
-	private void waitFor(int bytesAvailable) throws IOException {
-		try {
-			for (int z = 10; z > 0; z--) {
-				int k = inStream.available();
-				if (k >= bytesAvailable)
-					return;
-				// System.out.println(
-				// "waitFor("+bytesAvailable+") - got "+k);
-				Thread.sleep(TIMEOUT_VALUE / 10);
-			}
-			throw new IOException("serial connection time out");
-		} catch (InterruptedException e) {
+			EventLog.log(FAILED, ex);
 		}
-		;
 	}
 
-	/**
-	 * data returned from the Roomba comes in different sizes and this specifies
-	 * how many bytes to get. A negative entry in this table means the result is
-	 * signed.
+	/*
+	 * data returned from the Roomba comes in different sizes and pktTable
+	 * specifies how many bytes to get. A negative entry in this table means
+	 * the result is signed.
 	 */
-	private void initPacketSpec() {
+	static {
 		pktTable[0] = 26;
 		pktTable[1] = 10;
 		pktTable[2] = 6;
@@ -146,16 +163,16 @@ public class Roomba implements IRoombaOpenInterface {
 		pktTable[CHARGING_STATE] = 1;
 		pktTable[VOLTS] = 2; // mV
 		pktTable[AMPS] = -2; // mA, +ive value means charging
-		pktTable[TEMPERATURE] = 1;
+		pktTable[TEMPERATURE] = -1; // degrees C
 		pktTable[BATTERY_CHARGE] = 2;
 		pktTable[BATTERY_CAPACITY] = 2;
-		pktTable[WALL] = 2;
-		pktTable[CLIFF_L] = 2;
-		pktTable[CLIFF_FL] = 2;
-		pktTable[CLIFF_FR] = 2;
-		pktTable[CLIFF_R] = 2;
+		pktTable[WALL_SIG] = 2;
+		pktTable[CLIFF_L_SIG] = 2;
+		pktTable[CLIFF_FL_SIG] = 2;
+		pktTable[CLIFF_FR_SIG] = 2;
+		pktTable[CLIFF_R_SIG] = 2;
 		pktTable[P32] = 1;
-		pktTable[P33] = 1;
+		pktTable[P33] = 2;
 		pktTable[CHARGING_SOURCE] = 1;
 		pktTable[MODE] = 1;
 		pktTable[SONG_NUMBER] = 1;
@@ -181,10 +198,6 @@ public class Roomba implements IRoombaOpenInterface {
 		pktTable[MOTOR_CURRENT_B] = -2;
 		pktTable[MOTOR_CURRENT_SB] = -2;
 		pktTable[STASIS] = 1;
-		pktTable[60] = 80;// Packet 100
-		pktTable[61] = 21;// Packet 101
-		pktTable[66] = 12;// Packet 106
-		pktTable[67] = 9; // Packet 107
 	}
 
 	static int one2unsigned(int b) {
@@ -204,31 +217,27 @@ public class Roomba implements IRoombaOpenInterface {
 	}
 
 	/**
+	 * sends the first n bytes of cmd to the roomba in one go.
 	 */
-	private int readOne() throws IOException {
-		waitFor(1);
-		return one2unsigned(inStream.read());
+	private void send(int n) throws IOException {
+		outStream.write(cmd, 0, n);
+		metrics.command(n);
 	}
 
 	/**
+	 * sends a command with no data bytes.
 	 */
-	private int readOneSigned() throws IOException {
-		waitFor(1);
-		return one2signed(inStream.read());
+	private void command(int opcode) throws IOException {
+		cmd[0] = (byte) opcode;
+		send(1);
 	}
 
 	/**
+	 * puts a 16 bit value in cmd, high byte first.
 	 */
-	private int readTwo() throws IOException {
-		waitFor(2);
-		return two2unsigned(inStream.read(), inStream.read());
-	}
-
-	/**
-	 */
-	private int readTwoSigned() throws IOException {
-		waitFor(2);
-		return two2signed(inStream.read(), inStream.read());
+	private void put16(int i, int value) {
+		cmd[i] = (byte) (value >> 8 & 0xFF);
+		cmd[i + 1] = (byte) (value & 0xFF);
 	}
 
 	// ----------------- the ROI interface commands ------------------
@@ -237,124 +246,127 @@ public class Roomba implements IRoombaOpenInterface {
 	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#start()
 	 */
 	@Override
-	public void start() throws IOException {
-		outStream.write((byte) 128);
+	public synchronized void start() throws IOException {
+		command(128);
 	}
 
 	/* (non-Javadoc)
 	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#baud(int)
 	 */
 	@Override
-	public void baud(int code) throws IOException {
-		outStream.write((byte) 129);
-		outStream.write((byte) code);
+	public synchronized void baud(int code) throws IOException {
+		cmd[0] = (byte) 129;
+		cmd[1] = (byte) code;
+		send(2);
 	}
 
 	/* (non-Javadoc)
 	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#passive()
 	 */
 	@Override
-	public void passive() throws IOException {
-		outStream.write((byte) 128);
+	public synchronized void passive() throws IOException {
+		command(128);
 	}
 
 	/* (non-Javadoc)
 	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#safe()
 	 */
 	@Override
-	public void safe() throws IOException {
-		outStream.write((byte) 131);
+	public synchronized void safe() throws IOException {
+		command(131);
 	}
 
 	/* (non-Javadoc)
 	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#full()
 	 */
 	@Override
-	public void full() throws IOException {
-		outStream.write((byte) 132);
+	public synchronized void full() throws IOException {
+		command(132);
 	}
 
 	/* (non-Javadoc)
 	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#clean()
 	 */
 	@Override
-	public void clean() throws IOException {
-		outStream.write((byte) 135);
+	public synchronized void clean() throws IOException {
+		command(135);
 	}
 
 	/* (non-Javadoc)
 	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#max()
 	 */
 	@Override
-	public void max() throws IOException {
-		outStream.write((byte) 136);
+	public synchronized void max() throws IOException {
+		command(136);
 	}
 
 	/* (non-Javadoc)
 	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#spot()
 	 */
 	@Override
-	public void spot() throws IOException {
-		outStream.write((byte) 134);
+	public synchronized void spot() throws IOException {
+		command(134);
 	}
 
 	/* (non-Javadoc)
 	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#seekDock()
 	 */
 	@Override
-	public void seekDock() throws IOException {
-		outStream.write((byte) 143);
+	public synchronized void seekDock() throws IOException {
+		command(143);
 	}
 
 	/* (non-Javadoc)
 	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#schedule(int, int, int, int, int, int, int, int, int, int, int, int, int, int, int)
 	 */
 	@Override
-	public void schedule(int days, int sunHour, int sunMinute, int monHour, int monMinute, int tueHour, int tueMinute,
+	public synchronized void schedule(int days, int sunHour, int sunMinute, int monHour, int monMinute, int tueHour, int tueMinute,
 			int wedHour, int wedMinute, int thrHour, int thrMinute, int friHour, int friMinute, int satHour,
 			int satMinute) throws IOException {
-		outStream.write((byte) 167);
-		outStream.write((byte) days);
-		outStream.write((byte) sunHour);
-		outStream.write((byte) sunMinute);
-		outStream.write((byte) monHour);
-		outStream.write((byte) monMinute);
-		outStream.write((byte) tueHour);
-		outStream.write((byte) tueMinute);
-		outStream.write((byte) wedHour);
-		outStream.write((byte) wedMinute);
-		outStream.write((byte) thrHour);
-		outStream.write((byte) thrMinute);
-		outStream.write((byte) friHour);
-		outStream.write((byte) friMinute);
-		outStream.write((byte) satHour);
-		outStream.write((byte) satMinute);
+		cmd[0] = (byte) 167;
+		cmd[1] = (byte) days;
+		cmd[2] = (byte) sunHour;
+		cmd[3] = (byte) sunMinute;
+		cmd[4] = (byte) monHour;
+		cmd[5] = (byte) monMinute;
+		cmd[6] = (byte) tueHour;
+		cmd[7] = (byte) tueMinute;
+		cmd[8] = (byte) wedHour;
+		cmd[9] = (byte) wedMinute;
+		cmd[10] = (byte) thrHour;
+		cmd[11] = (byte) thrMinute;
+		cmd[12] = (byte) friHour;
+		cmd[13] = (byte) friMinute;
+		cmd[14] = (byte) satHour;
+		cmd[15] = (byte) satMinute;
+		send(16);
 	}
 
 	/* (non-Javadoc)
 	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#setDayTime(int, int, int)
 	 */
 	@Override
-	public void setDayTime(int day, int hour, int minute) throws IOException {
-		outStream.write((byte) 168);
-		outStream.write((byte) day);
-		outStream.write((byte) hour);
-		outStream.write((byte) minute);
+	public synchronized void setDayTime(int day, int hour, int minute) throws IOException {
+		cmd[0] = (byte) 168;
+		cmd[1] = (byte) day;
+		cmd[2] = (byte) hour;
+		cmd[3] = (byte) minute;
+		send(4);
 	}
 
 	/* (non-Javadoc)
 	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#power()
 	 */
 	@Override
-	public void power() throws IOException {
-		outStream.write((byte) 133);
+	public synchronized void power() throws IOException {
+		command(133);
 	}
 
 	/* (non-Javadoc)
 	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#drive(int, int)
 	 */
 	@Override
-	public void drive(int vel, int radius) throws IOException {
+	public synchronized void drive(int vel, int radius) throws IOException {
 		if (vel > 500)
 			vel = 500;
 		if (vel < -500)
@@ -366,18 +378,38 @@ public class Roomba implements IRoombaOpenInterface {
 			radius = -2000;
 		short v = (short) vel;
 		short r = (short) radius;
-		outStream.write((byte) 137);
-		outStream.write((byte) (v >> 8 & 0xFF));
-		outStream.write((byte) (v & 0xFF));
-		outStream.write((byte) (r >> 8 & 0xFF));
-		outStream.write((byte) (r & 0xFF));
+		cmd[0] = (byte) 137;
+		put16(1, v);
+		put16(3, r);
+		send(5);
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#driveDirect(int, int)
+	 */
+	@Override
+	public synchronized void driveDirect(int right, int left) throws IOException {
+		if (right > 500)
+			right = 500;
+		if (right < -500)
+			right = -500;
+		if (left > 500)
+			left = 500;
+		if (left < -500)
+			left = -500;
+		short r = (short) right;
+		short l = (short) left;
+		cmd[0] = (byte) 145;
+		put16(1, r);
+		put16(3, l);
+		send(5);
 	}
 
 	/* (non-Javadoc)
 	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#drivePwm(int, int)
 	 */
 	@Override
-	public void drivePwm(int left, int right) throws IOException {
+	public synchronized void drivePwm(int left, int right) throws IOException {
 		if (left > 255)
 			left = 255;
 		if (left < -255)
@@ -388,42 +420,44 @@ public class Roomba implements IRoombaOpenInterface {
 			right = -255;
 		short l = (short) left;
 		short r = (short) right;
-		outStream.write((byte) 146);
-		outStream.write((byte) (r >> 8 & 0xFF));
-		outStream.write((byte) (r & 0xFF));
-		outStream.write((byte) (l >> 8 & 0xFF));
-		outStream.write((byte) (l & 0xFF));
+		cmd[0] = (byte) 146;
+		put16(1, r);
+		put16(3, l);
+		send(5);
 	}
 
 	/* (non-Javadoc)
 	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#pwmMotors(int, int, int)
 	 */
 	@Override
-	public void pwmMotors(int main, int side, int vac) throws IOException {
-		outStream.write((byte) 144);
-		outStream.write((byte) main);
-		outStream.write((byte) side);
-		outStream.write((byte) vac);
+	public synchronized void pwmMotors(int main, int side, int vac) throws IOException {
+		cmd[0] = (byte) 144;
+		cmd[1] = (byte) main;
+		cmd[2] = (byte) side;
+		cmd[3] = (byte) vac;
+		send(4);
 	}
 
 	/* (non-Javadoc)
 	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#leds(int, int, int)
 	 */
 	@Override
-	public void leds(int ledBits, int color, int intensity) throws IOException {
-		outStream.write((byte) 139);
-		outStream.write((byte) ledBits);
-		outStream.write((byte) color);
-		outStream.write((byte) intensity);
+	public synchronized void leds(int ledBits, int color, int intensity) throws IOException {
+		cmd[0] = (byte) 139;
+		cmd[1] = (byte) ledBits;
+		cmd[2] = (byte) color;
+		cmd[3] = (byte) intensity;
+		send(4);
 	}
 
 	/* (non-Javadoc)
 	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#buttons(char)
 	 */
 	@Override
-	public void buttons(char which) throws IOException {
-		outStream.write((byte) 165);
-		outStream.write((byte) which);
+	public synchronized void buttons(char which) throws IOException {
+		cmd[0] = (byte) 165;
+		cmd[1] = (byte) which;
+		send(2);
 	}
 
 	/* (non-Javadoc)
@@ -438,9 +472,10 @@ public class Roomba implements IRoombaOpenInterface {
 	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#play(int)
 	 */
 	@Override
-	public void play(int songNumber) throws IOException {
-		outStream.write((byte) 141);
-		outStream.write((byte) songNumber);
+	public synchronized void play(int songNumber) throws IOException {
+		cmd[0] = (byte) 141;
+		cmd[1] = (byte) songNumber;
+		send(2);
 	}
 
 	/* (non-Javadoc)
@@ -448,18 +483,17 @@ public class Roomba implements IRoombaOpenInterface {
 	 */
 	@Override
 	public int sensors(int pid) throws IOException {
-		if (pid >= 100 || pid < 7)
-			throw new RuntimeException("sensors(int) returns a single value, use sensor(int, int[])");
-		outStream.write((byte) 142);
-		outStream.write((byte) pid);
-		if (pktTable[pid] == -2) {
-			return readTwoSigned();
-		} else if (pktTable[pid] == 1) {
-			return readOne();
-		} else if (pktTable[pid] == 2) {
-			return readTwo();
-		} else
+		if (pid >= pktTable.length || pid < 7 || pktTable[pid] == 0)
 			throw new RuntimeException("sensors(int) returns a single value, use sensor(int, int[])");
+		Future<int[]> f;
+		synchronized (this) {
+			checkNotStreaming();
+			cmd[0] = (byte) 142;
+			cmd[1] = (byte) pid;
+			send(2);
+			f = queries.expect(new int[] { pid }, new int[] { 0 }, new int[1]);
+		}
+		return await(f)[0];
 	}
 
 	/* (non-Javadoc)
@@ -467,80 +501,96 @@ public class Roomba implements IRoombaOpenInterface {
 	 */
 	@Override
 	public int[] sensors(int groupPacketId, int[] results) throws IOException {
+		return await(sensorsAsync(groupPacketId, results));
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#sensorsAsync(int, int[])
+	 */
+	@Override
+	public synchronized Future<int[]> sensorsAsync(int groupPacketId, int[] results) throws IOException {
+		int[] pids = group(groupPacketId);
+		if (pids == null)
+			throw new RuntimeException("Unrecognized group packet: " + groupPacketId);
+		QueryEngine.size(pids); // fails for packets we can't decode
+
+		checkNotStreaming();
+		cmd[0] = (byte) 142;
+		cmd[1] = (byte) groupPacketId;
+		send(2);
+		return queries.expect(pids, pids, results);
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#sensors(eu.kreativzone.roopie.server.SensorFrame)
+	 */
+	@Override
+	public SensorFrame sensors(SensorFrame frame) throws IOException {
+		sensors(100, frame.values());
+		return frame;
+	}
+
+	/**
+	 * the packets in a group packet (0-6, 100-107), in the order the OI sends
+	 * them, or null if pid isn't a group.
+	 */
+	static int[] group(int pid) {
 		int start;
 		int stop = 0;
-		int size = 0;
-		switch (groupPacketId) { // ROI spec page 33
+		switch (pid) { // ROI spec page 33
 		case 0:
 			start = 7;
 			stop = 26;
-			size = 26;
 			break;
 		case 1:
 			start = 7;
 			stop = 16;
-			size = 10;
 			break;
 		case 2:
 			start = 17;
 			stop = 20;
-			size = 6;
 			break;
 		case 3:
 			start = 21;
 			stop = 26;
-			size = 10;
 			break;
 		case 4:
 			start = 27;
 			stop = 34;
-			size = 14;
 			break;
 		case 5:
 			start = 35;
 			stop = 42;
-			size = 12;
 			break;
 		case 6:
 			start = 7;
 			stop = 42;
-			size = 52;
 			break;
 		case 100:
 			start = 7;
 			stop = 58;
-			size = 80;
+			break;
+		case 101:
+			start = 43;
+			stop = 58;
 			break;
 		case 106:
 			start = 46;
 			stop = 51;
-			size = 12;
 			break;
 		case 107:
 			start = 54;
 			stop = 58;
-			size = 9;
 			break;
 		default:
 			start = -1;
 		}
 		if (start < 0)
-			throw new RuntimeException("Unrecognized group packet: " + groupPacketId);
-
-		outStream.write((byte) 142);
-		outStream.write((byte) groupPacketId);
-		waitFor(size);
-		for (int pid = start; pid <= stop; pid++) {
-			if (pktTable[pid] == -2) {
-				results[pid] = readTwoSigned();
-			} else if (pktTable[pid] == 1) {
-				results[pid] = readOne();
-			} else if (pktTable[pid] == 2) {
-				results[pid] = readTwo();
-			} else
-				throw new RuntimeException("Error 171");
-		}
-		return results;
+			return null;
+		int[] pids = new int[stop - start + 1];
+		for (int i = 0; i < pids.length; i++)
+			pids[i] = start + i;
+		return pids;
 	}
 
 	/* (non-Javadoc)
@@ -548,128 +598,168 @@ public class Roomba implements IRoombaOpenInterface {
 	 */
 	@Override
 	public int[] queryList(int[] packets, int[] results) throws IOException {
-		outStream.write((byte) 149);
-		outStream.write((byte) packets.length);
-		int psz = 0;
-		for (int i = 0; i < packets.length; i++) {
-			outStream.write((byte) packets[i]);
-			int j = pktTable[packets[i]];
-			psz += j > 0 ? j : -j;
-		}
-		waitFor(psz);
-		for (int i = 0; i < packets.length; i++) {
-			int pid = packets[i];
-			if (pktTable[pid] == -2) {
-				results[i] = readTwoSigned();
-			} else if (pktTable[pid] == 1) {
-				results[i] = readOne();
-			} else if (pktTable[pid] == 2) {
-				results[i] = readTwo();
-			} else
-				throw new RuntimeException("sensors(int) returns a single value, use sensor(int, int[])");
+		return await(queryListAsync(packets, results));
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#queryListAsync(int[], int[])
+	 */
+	@Override
+	public synchronized Future<int[]> queryListAsync(int[] packets, int[] results) throws IOException {
+		if (packets.length > 255)
+			throw new IllegalArgumentException("at most 255 packets can be queried");
+		QueryEngine.size(packets); // fails for packets we can't decode
+		int[] slots = new int[packets.length];
+		for (int i = 0; i < slots.length; i++)
+			slots[i] = i;
+		checkNotStreaming();
+		cmd[0] = (byte) 149;
+		cmd[1] = (byte) packets.length;
+		for (int i = 0; i < packets.length; i++)
+			cmd[2 + i] = (byte) packets[i];
+		send(2 + packets.length);
+		return queries.expect(packets.clone(), slots, results);
+	}
+
+	/**
+	 * the answers to queries would be mixed in with the stream, and both the
+	 * stream thread and the query thread would be reading them.
+	 */
+	private void checkNotStreaming() throws IOException {
+		if (snapshot != null)
+			throw new IOException("can't query sensors while streaming - call stream(null) first");
+	}
+
+	/**
+	 * waits for a query to be answered.
+	 */
+	private static int[] await(Future<int[]> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("interrupted waiting for sensor data");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
 		}
-		return results;
 	}
 
 	/* (non-Javadoc)
 	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#stream(int[])
 	 */
 	@Override
-	public int[] stream(int[] packets) throws IOException {
-		// the runnable in the Thread below picks up changes to newPktList
+	public synchronized SensorSnapshot stream(int[] packets) throws IOException {
+		// the runnable in the Thread below picks up changes to newPlan. It
+		// takes the plan holding the lock on this, so a thread about to stop
+		// for a pause can't miss a plan set after it, and leave a stream()
+		// that found it still running with nothing to send the plan.
 		if (packets != null)
-			newPktList = packets;
+			newPlan = new StreamPlan(packets);
 		else
-			newPktList = new int[0];
-		if (streamData != null)
-			return streamData;
+			newPlan = StreamPlan.PAUSE;
+		if (snapshot != null)
+			return snapshot;
 		// else set up the Thread to process data
 		final Roomba theRoi = this;
-		streamData = new int[60];
+		snapshot = new SensorSnapshot();
 		Thread t = new Thread(new Runnable() {
-			int[] pktList = null;
+			StreamPlan plan = null;
+			StreamParser parser = new StreamParser();
+			int[] data = new int[SensorSnapshot.SIZE]; // decoded into here
 
 			public void run() {
 				while (true)
 					try {
-						if (theRoi.newPktList != null) {
+						if (theRoi.newPlan != null) {
 							// send a new Stream command
-							pktList = theRoi.newPktList;
-							theRoi.newPktList = null;
-							if (pktList.length == 0) {
-								outStream.write((byte) 150);
-								outStream.write((byte) 0); // pause the stream
-								streamData = null; // so that it will be reset
-								break;
+							synchronized (theRoi) { // other threads send commands too
+								plan = theRoi.newPlan;
+								theRoi.newPlan = null;
+								metrics.restart(); // the gap before this plan isn't a frame interval
+								if (plan.packets.length == 0) {
+									send(plan.command(cmd)); // pause the stream
+									snapshot = null; // so that it will be reset
+									break;
+								}
+								inStream.skip(inStream.available());
+								parser.setPlan(plan);
+								send(plan.command(cmd));
 							}
-							outStream.write((byte) 148);
-							outStream.write((byte) pktList.length);
-							for (int i = 0; i < pktList.length - 1; i++)
-								outStream.write((byte) pktList[i]);
-							inStream.skip(inStream.available());
-							outStream.write((byte) pktList[pktList.length - 1]);
-						}
-						// at this poit we expect [19][n-bytes]...[checksum]
-						int header = inStream.read();
-						if (header != (byte) 19) {
-							streamData[0] = 4; // data is out of sync
-							continue;
 						}
 						// Note the documentation says the header is not used,
 						// but it seems it is. And of course doing a checksum
 						// on all the send data is a more standard way of doing
 						// things.
-						int csm = 19;
-						// got 19. Have we got the latest data?
-						int nBytes = 0xFF & inStream.read();
-						int k = nBytes + 3; // number of bytes in a stream
-											// element
-						if (inStream.available() >= 2 * k - 2) {
-							streamData[0] = 3; // there's a backlog of data
-							int b = inStream.available() / k;
-							inStream.skip(b * k);
-							continue;
+						int n = parser.readFrom(inStream);
+						if (n < 0) {
+							synchronized (theRoi) {
+								snapshot = null; // nothing will update it any more
+							}
+							EventLog.log(STREAM_ENDED);
+							break;
 						}
-						// the data is the last sent. Get it, keeping
-						// track of the checksum
-						csm += nBytes;
-						for (int i = 0; i < pktList.length; i++) {
-							int z = inStream.read(); // less than 128 packets
-							csm += z;
-							if ((byte) pktList[i] != z) {
-								streamData[0] = 2; // wrong packet ID
+						metrics.read(n);
+						long now = System.currentTimeMillis();
+						long nanos = System.nanoTime();
+						int status;
+						while ((status = parser.next(data)) != StreamParser.MORE) {
+							TelemetryRecorder rec = recorder;
+							if (status != StreamParser.OK) {
+								snapshot.setStatus(status);
+								metrics.error(status);
+								if (rec != null)
+									rec.record(plan.values, data, status, now, nanos);
 								continue;
 							}
-							z = pktTable[pktList[i]]; // -2, -1, 1 or 2
-							boolean signed = z < 0;
-							z = z < 0 ? -z : z;
-							if (z == 2) {
-								int hi = inStream.read();
-								int lo = inStream.read();
-								csm += one2unsigned(hi) + one2unsigned(lo);
-								z = signed ? two2signed(hi, lo) : two2unsigned(hi, lo);
-							} else {
-								int b = inStream.read();
-								csm += one2unsigned(b);
-								z = signed ? one2signed(b) : one2unsigned(b);
-							}
-							streamData[pktList[i]] = z;
+							snapshot.publish(data, now, nanos);
+							metrics.frame(nanos);
+							if (rec != null)
+								rec.record(plan.values, data, status, now, nanos);
+							for (StreamListener l : streamListeners)
+								l.frameReceived(snapshot);
 						}
-						csm += inStream.read(); // the checksum value
-						if ((csm & 0xFF) == 0)
-							streamData[0] = 0; // success
-						else
-							streamData[0] = 1; // failed checksum
 					} catch (IOException ex) {
-						ex.printStackTrace();
+						EventLog.log(STREAM_FAILED, ex); // with the stack trace
 					}
-				// System.out.println("no more sends");
 			}// run
 		});
 		t.start();
-		return streamData;
+		return snapshot;
 	} // stream()
 
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#addStreamListener(eu.kreativzone.roopie.server.StreamListener)
+	 */
+	@Override
+	public void addStreamListener(StreamListener listener) {
+		streamListeners.add(listener);
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#removeStreamListener(eu.kreativzone.roopie.server.StreamListener)
+	 */
+	@Override
+	public void removeStreamListener(StreamListener listener) {
+		streamListeners.remove(listener);
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#metrics()
+	 */
+	@Override
+	public LinkMetrics metrics() {
+		return metrics;
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#setRecorder(eu.kreativzone.roopie.server.TelemetryRecorder)
+	 */
+	@Override
+	public void setRecorder(TelemetryRecorder recorder) {
+		this.recorder = recorder;
+	}
+
 	/* (non-Javadoc)
 	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#pauseResumeStream()
 	 */
@@ -7,248 +7,47 @@ import java.io.IOException;
 
 import com.jcabi.aspects.Loggable;
 
-import gnu.io.SerialPortEventListener;
-
 /**
+ * A Roomba with no robot: the real Roomba class talking down an in-memory
+ * serial line to an OpenInterfaceDevice, so everything but the serial port
+ * itself gets exercised. The simulated robot drives about a Room, in time
+ * that can run faster than real time.
+ * 
  * @author paul
  *
  */
 @Loggable
-public class RoombaDummy implements IRoombaOpenInterface {
-
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#addDataAvailableEventHandler(gnu.io.SerialPortEventListener)
-	 */
-	@Override
-	public void addDataAvailableEventHandler(SerialPortEventListener eventHandler) {
-		// TODO Auto-generated method stub
-
-	}
-
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#disconnect()
-	 */
-	@Override
-	public void disconnect() {
-		// TODO Auto-generated method stub
-
-	}
-
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#start()
-	 */
-	@Override
-	public void start() throws IOException {
-		System.out.println("Start");
-	}
-
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#baud(int)
-	 */
-	@Override
-	public void baud(int code) throws IOException {
-		// TODO Auto-generated method stub
-
-	}
-
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#passive()
-	 */
-	@Override
-	public void passive() throws IOException {
-		// TODO Auto-generated method stub
-
-	}
-
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#safe()
-	 */
-	@Override
-	public void safe() throws IOException {
-		// TODO Auto-generated method stub
+public class RoombaDummy extends Roomba {
+	private final OpenInterfaceDevice device;
 
-	}
-
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#full()
-	 */
-	@Override
-	public void full() throws IOException {
-		// TODO Auto-generated method stub
-
-	}
-
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#clean()
-	 */
-	@Override
-	public void clean() throws IOException {
-		// TODO Auto-generated method stub
-
-	}
-
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#max()
-	 */
-	@Override
-	public void max() throws IOException {
-		// TODO Auto-generated method stub
-
-	}
-
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#spot()
-	 */
-	@Override
-	public void spot() throws IOException {
-		// TODO Auto-generated method stub
-
-	}
-
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#seekDock()
+	/**
+	 * a dummy in the default room, in real time.
 	 */
-	@Override
-	public void seekDock() throws IOException {
-		// TODO Auto-generated method stub
-
+	public RoombaDummy() throws IOException {
+		this(null, 1);
 	}
 
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#schedule(int, int, int, int, int, int, int, int, int, int, int, int, int, int, int)
+	/**
+	 * a dummy in the room described in roomFile (the default room if it is
+	 * null), with time running speedup times faster than real time.
 	 */
-	@Override
-	public void schedule(int days, int sunHour, int sunMinute, int monHour, int monMinute, int tueHour, int tueMinute,
-			int wedHour, int wedMinute, int thrHour, int thrMinute, int friHour, int friMinute, int satHour,
-			int satMinute) throws IOException {
-		// TODO Auto-generated method stub
-
+	public RoombaDummy(String roomFile, double speedup) throws IOException {
+		this(new SerialPipe(READ_TIMEOUT), new SerialPipe(READ_TIMEOUT), Room.load(roomFile),
+				new VirtualClock(speedup));
 	}
 
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#setDayTime(int, int, int)
-	 */
-	@Override
-	public void setDayTime(int day, int hour, int minute) throws IOException {
-		// TODO Auto-generated method stub
-
+	private RoombaDummy(SerialPipe toDevice, SerialPipe fromDevice, Room room, VirtualClock clock) {
+		super(fromDevice.in, toDevice.out);
+		device = new OpenInterfaceDevice(toDevice, fromDevice.out, room, clock);
+		device.start();
 	}
 
 	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#power()
+	 * @see eu.kreativzone.roopie.server.Roomba#disconnect()
 	 */
 	@Override
-	public void power() throws IOException {
-		// TODO Auto-generated method stub
-
-	}
-
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#drive(int, int)
-	 */
-	@Override
-	public void drive(int vel, int radius) throws IOException {
-		// TODO Auto-generated method stub
-
-	}
-
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#drivePwm(int, int)
-	 */
-	@Override
-	public void drivePwm(int left, int right) throws IOException {
-		// TODO Auto-generated method stub
-
-	}
-
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#pwmMotors(int, int, int)
-	 */
-	@Override
-	public void pwmMotors(int main, int side, int vac) throws IOException {
-		// TODO Auto-generated method stub
-
-	}
-
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#leds(int, int, int)
-	 */
-	@Override
-	public void leds(int ledBits, int color, int intensity) throws IOException {
-		// TODO Auto-generated method stub
-
-	}
-
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#buttons(char)
-	 */
-	@Override
-	public void buttons(char which) throws IOException {
-		// TODO Auto-generated method stub
-
-	}
-
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#song(int, int[], int[])
-	 */
-	@Override
-	public void song(int songNumber, int[] notes, int[] durations) throws IOException {
-		// TODO Auto-generated method stub
-
-	}
-
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#play(int)
-	 */
-	@Override
-	public void play(int songNumber) throws IOException {
-		// TODO Auto-generated method stub
-
-	}
-
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#sensors(int)
-	 */
-	@Override
-	public int sensors(int pid) throws IOException {
-		// TODO Auto-generated method stub
-		return 0;
-	}
-
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#sensors(int, int[])
-	 */
-	@Override
-	public int[] sensors(int groupPacketId, int[] results) throws IOException {
-		// TODO Auto-generated method stub
-		return null;
-	}
-
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#queryList(int[], int[])
-	 */
-	@Override
-	public int[] queryList(int[] packets, int[] results) throws IOException {
-		// TODO Auto-generated method stub
-		return null;
-	}
-
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#stream(int[])
-	 */
-	@Override
-	public int[] stream(int[] packets) throws IOException {
-		// TODO Auto-generated method stub
-		return null;
-	}
-
-	/* (non-Javadoc)
-	 * @see eu.kreativzone.roopie.server.IRoombaOpenInterface#pauseResumeStream()
-	 */
-	@Override
-	public void pauseResumeStream() throws IOException {
-		// TODO Auto-generated method stub
-
+	public void disconnect() {
+		super.disconnect();
+		device.stop();
 	}
-
 }
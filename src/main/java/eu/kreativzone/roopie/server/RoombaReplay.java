@@ -0,0 +1,38 @@
+package eu.kreativzone.roopie.server;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A Roomba that replays a recording made by a TelemetryRecorder: the real
+ * Roomba class talking down an in-memory serial line to a ReplayDevice, so
+ * the recorded frames go through the same stream() path as live ones. Drive
+ * and other commands are logged, not executed.
+ */
+public class RoombaReplay extends Roomba {
+	private final ReplayDevice device;
+
+	/**
+	 * a replay of the prefix-n.rec segments in dir, speedup times faster than
+	 * they were recorded.
+	 */
+	public RoombaReplay(File dir, String prefix, double speedup) throws IOException {
+		this(new SerialPipe(READ_TIMEOUT), new SerialPipe(READ_TIMEOUT), new TelemetryReader(dir, prefix),
+				new VirtualClock(speedup));
+	}
+
+	private RoombaReplay(SerialPipe toDevice, SerialPipe fromDevice, TelemetryReader recording, VirtualClock clock) {
+		super(fromDevice.in, toDevice.out);
+		device = new ReplayDevice(toDevice, fromDevice.out, recording, clock);
+		device.start();
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.Roomba#disconnect()
+	 */
+	@Override
+	public void disconnect() {
+		super.disconnect();
+		device.stop();
+	}
+}
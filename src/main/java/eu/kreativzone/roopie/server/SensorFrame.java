@@ -0,0 +1,376 @@
+package eu.kreativzone.roopie.server;
+
+/**
+ * The readings of every sensor packet (7-58, group 100) with an accessor for
+ * each, so they can be read as what they are rather than by packet id: the
+ * bumps and wheel drops, buttons, light bumper and overcurrents come apart
+ * into their bits, signed packets are signed and flags are booleans. Packets
+ * 16, 32 and 33 are unused in the OI spec and have no accessor; get() reads
+ * them like any other.
+ * <p>
+ * The values are kept as ints indexed by packet id, the same as everywhere
+ * else, so a frame is filled by decoding straight into values(), and can be
+ * filled over and over. Filling one from the stream allocates nothing;
+ * IRoombaOpenInterface.sensors(SensorFrame) runs a query, which does.
+ */
+public class SensorFrame {
+	public static final int SIZE = 60; // room for packets 0..58
+
+	protected final int[] values = new int[SIZE];
+
+	/**
+	 * the value of a single packet (7-58).
+	 */
+	public int get(int pid) {
+		return values[pid];
+	}
+
+	/**
+	 * the values, indexed by packet id, to decode into.
+	 */
+	int[] values() {
+		return values;
+	}
+
+	private boolean bit(int pid, int bit) {
+		return (values[pid] & 1 << bit) != 0;
+	}
+
+	// 7: bumps and wheel drops
+
+	public int bumps() {
+		return values[IRoombaOpenInterface.BUMPS];
+	}
+
+	public boolean bumpRight() {
+		return bit(IRoombaOpenInterface.BUMPS, 0);
+	}
+
+	public boolean bumpLeft() {
+		return bit(IRoombaOpenInterface.BUMPS, 1);
+	}
+
+	public boolean wheelDropRight() {
+		return bit(IRoombaOpenInterface.BUMPS, 2);
+	}
+
+	public boolean wheelDropLeft() {
+		return bit(IRoombaOpenInterface.BUMPS, 3);
+	}
+
+	// 8-13
+
+	public boolean wall() {
+		return values[IRoombaOpenInterface.WALL] != 0;
+	}
+
+	public boolean cliffLeft() {
+		return values[IRoombaOpenInterface.CLIFF_L] != 0;
+	}
+
+	public boolean cliffFrontLeft() {
+		return values[IRoombaOpenInterface.CLIFF_FL] != 0;
+	}
+
+	public boolean cliffFrontRight() {
+		return values[IRoombaOpenInterface.CLIFF_FR] != 0;
+	}
+
+	public boolean cliffRight() {
+		return values[IRoombaOpenInterface.CLIFF_R] != 0;
+	}
+
+	public boolean virtualWall() {
+		return values[IRoombaOpenInterface.V_WALL] != 0;
+	}
+
+	// 14: wheel overcurrents
+
+	public int overcurrents() {
+		return values[IRoombaOpenInterface.OVER_CURRENT];
+	}
+
+	public boolean sideBrushOvercurrent() {
+		return bit(IRoombaOpenInterface.OVER_CURRENT, 0);
+	}
+
+	public boolean mainBrushOvercurrent() {
+		return bit(IRoombaOpenInterface.OVER_CURRENT, 2);
+	}
+
+	public boolean rightWheelOvercurrent() {
+		return bit(IRoombaOpenInterface.OVER_CURRENT, 3);
+	}
+
+	public boolean leftWheelOvercurrent() {
+		return bit(IRoombaOpenInterface.OVER_CURRENT, 4);
+	}
+
+	// 15 and 17 (16 is unused)
+
+	public int dirtDetect() {
+		return values[IRoombaOpenInterface.DIRT];
+	}
+
+	/**
+	 * the character the omnidirectional IR receiver is getting, 0 for none.
+	 */
+	public int irOmni() {
+		return values[IRoombaOpenInterface.IR_OMNI];
+	}
+
+	// 18: buttons
+
+	public int buttons() {
+		return values[IRoombaOpenInterface.BUTTONS];
+	}
+
+	public boolean cleanButton() {
+		return bit(IRoombaOpenInterface.BUTTONS, 0);
+	}
+
+	public boolean spotButton() {
+		return bit(IRoombaOpenInterface.BUTTONS, 1);
+	}
+
+	public boolean dockButton() {
+		return bit(IRoombaOpenInterface.BUTTONS, 2);
+	}
+
+	public boolean minuteButton() {
+		return bit(IRoombaOpenInterface.BUTTONS, 3);
+	}
+
+	public boolean hourButton() {
+		return bit(IRoombaOpenInterface.BUTTONS, 4);
+	}
+
+	public boolean dayButton() {
+		return bit(IRoombaOpenInterface.BUTTONS, 5);
+	}
+
+	public boolean scheduleButton() {
+		return bit(IRoombaOpenInterface.BUTTONS, 6);
+	}
+
+	public boolean clockButton() {
+		return bit(IRoombaOpenInterface.BUTTONS, 7);
+	}
+
+	// 19-26: odometry and battery
+
+	/**
+	 * mm travelled since distance was last read.
+	 */
+	public int distance() {
+		return values[IRoombaOpenInterface.DISTANCE];
+	}
+
+	/**
+	 * degrees turned, anticlockwise, since angle was last read.
+	 */
+	public int angle() {
+		return values[IRoombaOpenInterface.ANGLE];
+	}
+
+	public int chargingState() {
+		return values[IRoombaOpenInterface.CHARGING_STATE];
+	}
+
+	/**
+	 * battery voltage, mV.
+	 */
+	public int voltage() {
+		return values[IRoombaOpenInterface.VOLTS];
+	}
+
+	/**
+	 * battery current, mA; positive when charging.
+	 */
+	public int current() {
+		return values[IRoombaOpenInterface.AMPS];
+	}
+
+	/**
+	 * battery temperature, degrees C.
+	 */
+	public int temperature() {
+		return values[IRoombaOpenInterface.TEMPERATURE];
+	}
+
+	/**
+	 * mAh.
+	 */
+	public int batteryCharge() {
+		return values[IRoombaOpenInterface.BATTERY_CHARGE];
+	}
+
+	/**
+	 * mAh.
+	 */
+	public int batteryCapacity() {
+		return values[IRoombaOpenInterface.BATTERY_CAPACITY];
+	}
+
+	// 27-31: signal strengths, 0-4095
+
+	public int wallSignal() {
+		return values[IRoombaOpenInterface.WALL_SIG];
+	}
+
+	public int cliffLeftSignal() {
+		return values[IRoombaOpenInterface.CLIFF_L_SIG];
+	}
+
+	public int cliffFrontLeftSignal() {
+		return values[IRoombaOpenInterface.CLIFF_FL_SIG];
+	}
+
+	public int cliffFrontRightSignal() {
+		return values[IRoombaOpenInterface.CLIFF_FR_SIG];
+	}
+
+	public int cliffRightSignal() {
+		return values[IRoombaOpenInterface.CLIFF_R_SIG];
+	}
+
+	// 34-38: charger and OI state (32 and 33 are unused)
+
+	public boolean internalCharger() {
+		return bit(IRoombaOpenInterface.CHARGING_SOURCE, 0);
+	}
+
+	public boolean homeBase() {
+		return bit(IRoombaOpenInterface.CHARGING_SOURCE, 1);
+	}
+
+	/**
+	 * 0 off, 1 passive, 2 safe, 3 full.
+	 */
+	public int mode() {
+		return values[IRoombaOpenInterface.MODE];
+	}
+
+	public int songNumber() {
+		return values[IRoombaOpenInterface.SONG_NUMBER];
+	}
+
+	public boolean songPlaying() {
+		return values[IRoombaOpenInterface.SONG_PLAYING] != 0;
+	}
+
+	public int streamPackets() {
+		return values[IRoombaOpenInterface.STREAM_NUMBER];
+	}
+
+	// 39-42: what was last asked for with drive and driveDirect
+
+	public int requestedVelocity() {
+		return values[IRoombaOpenInterface.REQ_VELOCITY];
+	}
+
+	public int requestedRadius() {
+		return values[IRoombaOpenInterface.REQ_RADIUS];
+	}
+
+	public int requestedRightVelocity() {
+		return values[IRoombaOpenInterface.REQ_VELOCITY_R];
+	}
+
+	public int requestedLeftVelocity() {
+		return values[IRoombaOpenInterface.REQ_VELOCITY_L];
+	}
+
+	// 43-44: wheel encoder counts, which wrap at 65535
+
+	public int encoderRight() {
+		return values[IRoombaOpenInterface.ENCODER_R];
+	}
+
+	public int encoderLeft() {
+		return values[IRoombaOpenInterface.ENCODER_L];
+	}
+
+	// 45: light bumper
+
+	public int lightBumper() {
+		return values[IRoombaOpenInterface.LIGHT_BUMPER];
+	}
+
+	/**
+	 * whether light bump i (0-5: L, FL, CL, CR, FR, R) sees something.
+	 */
+	public boolean lightBumper(int i) {
+		return bit(IRoombaOpenInterface.LIGHT_BUMPER, i);
+	}
+
+	// 46-51: light bump signals, 0-4095
+
+	/**
+	 * the signal of light bump i (0-5: L, FL, CL, CR, FR, R).
+	 */
+	public int lightBump(int i) {
+		return values[IRoombaOpenInterface.LIGHT_BUMP_L + i];
+	}
+
+	public int lightBumpLeft() {
+		return values[IRoombaOpenInterface.LIGHT_BUMP_L];
+	}
+
+	public int lightBumpFrontLeft() {
+		return values[IRoombaOpenInterface.LIGHT_BUMP_FL];
+	}
+
+	public int lightBumpCenterLeft() {
+		return values[IRoombaOpenInterface.LIGHT_BUMP_CL];
+	}
+
+	public int lightBumpCenterRight() {
+		return values[IRoombaOpenInterface.LIGHT_BUMP_CR];
+	}
+
+	public int lightBumpFrontRight() {
+		return values[IRoombaOpenInterface.LIGHT_BUMP_FR];
+	}
+
+	public int lightBumpRight() {
+		return values[IRoombaOpenInterface.LIGHT_BUMP_R];
+	}
+
+	// 52-53
+
+	public int irCharLeft() {
+		return values[IRoombaOpenInterface.IR_CHAR_L];
+	}
+
+	public int irCharRight() {
+		return values[IRoombaOpenInterface.IR_CHAR_R];
+	}
+
+	// 54-57: motor currents, mA
+
+	public int leftMotorCurrent() {
+		return values[IRoombaOpenInterface.MOTOR_CURRENT_L];
+	}
+
+	public int rightMotorCurrent() {
+		return values[IRoombaOpenInterface.MOTOR_CURRENT_R];
+	}
+
+	public int mainBrushCurrent() {
+		return values[IRoombaOpenInterface.MOTOR_CURRENT_B];
+	}
+
+	public int sideBrushCurrent() {
+		return values[IRoombaOpenInterface.MOTOR_CURRENT_SB];
+	}
+
+	// 58
+
+	/**
+	 * whether the front caster is turning, so the robot is really moving.
+	 */
+	public boolean stasis() {
+		return bit(IRoombaOpenInterface.STASIS, 0);
+	}
+}
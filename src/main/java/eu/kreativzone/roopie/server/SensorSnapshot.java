@@ -0,0 +1,120 @@
+package eu.kreativzone.roopie.server;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A frame of stream data: the sensor values, indexed by packet id, with the
+ * frame's sequence number, when it arrived, and the outcome of the last
+ * attempt to read a frame.
+ * <p>
+ * The Roomba keeps one of these up to date from its stream thread. Anyone else
+ * takes a copy with copyTo() into a snapshot of their own, and reads that at
+ * leisure. Copying never makes the stream thread wait: the copy is taken
+ * optimistically and simply done again if a frame came in part way through,
+ * so the values in a copy always come from the one frame. A reader that
+ * keeps losing the race yields to let the frame finish, rather than taking
+ * a read lock the stream thread would have to wait for.
+ * <p>
+ * The values can be read by packet id, or with the SensorFrame accessors.
+ */
+public class SensorSnapshot extends SensorFrame {
+	private static final int SPINS = 4; // optimistic copies before yielding between them
+
+	private final StampedLock lock = new StampedLock();
+	private long sequence = 0;
+	private long timestamp = 0;
+	private long nanoTime = 0;
+	private int status = 0;
+
+	/**
+	 * counts the good frames, starting at 1. 0 means no frame yet.
+	 */
+	public long sequence() {
+		return sequence;
+	}
+
+	/**
+	 * when the frame arrived, as System.currentTimeMillis().
+	 */
+	public long timestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * when the frame arrived, as System.nanoTime().
+	 */
+	public long nanoTime() {
+		return nanoTime;
+	}
+
+	/**
+	 * 0 if the last frame read was good, or the error code for why it wasn't -
+	 * see IRoombaOpenInterface.stream(). The values are from the last good
+	 * frame either way.
+	 */
+	public int status() {
+		return status;
+	}
+
+	/**
+	 * makes a new good frame the current one. Only the stream thread calls
+	 * this.
+	 */
+	void publish(int[] data, long timestamp, long nanoTime) {
+		long stamp = lock.writeLock();
+		try {
+			System.arraycopy(data, 0, values, 0, SIZE);
+			sequence++;
+			this.timestamp = timestamp;
+			this.nanoTime = nanoTime;
+			status = 0;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * records a frame that had to be dropped. Only the stream thread calls
+	 * this.
+	 */
+	void setStatus(int status) {
+		long stamp = lock.writeLock();
+		this.status = status;
+		lock.unlockWrite(stamp);
+	}
+
+	/**
+	 * copies the current frame into dst, which should belong to the calling
+	 * thread.
+	 */
+	public void copyTo(SensorSnapshot dst) {
+		copyTo((SensorFrame) dst);
+	}
+
+	/**
+	 * copies just the values of the current frame into dst.
+	 */
+	public void copyTo(SensorFrame dst) {
+		for (int i = 0;; i++) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp != 0) {
+				copy(dst);
+				if (lock.validate(stamp))
+					return;
+			}
+			if (i >= SPINS)
+				Thread.yield(); // the stream thread is part way through a frame
+		}
+	}
+
+	private void copy(SensorFrame dst) {
+		System.arraycopy(values, 0, dst.values, 0, SIZE);
+		if (dst instanceof SensorSnapshot) {
+			SensorSnapshot s = (SensorSnapshot) dst;
+			s.sequence = sequence;
+			s.timestamp = timestamp;
+			s.nanoTime = nanoTime;
+			s.status = status;
+		}
+	}
+}
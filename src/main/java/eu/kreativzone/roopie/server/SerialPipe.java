@@ -0,0 +1,143 @@
+package eu.kreativzone.roopie.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One direction of an in-memory serial line: what is written to out can be
+ * read from in. Reads behave like those of the serial port with a receive
+ * timeout - they return as soon as there is any data, or with nothing once
+ * the timeout has passed. Writes wait while the buffer is full, as a real
+ * line can't go faster than the far end reads. Closing either end closes
+ * the pipe.
+ */
+class SerialPipe {
+	private static final int SIZE = 4096;
+	private static final int MASK = SIZE - 1;
+
+	private final byte[] buf = new byte[SIZE];
+	private final int timeout; // ms
+	private int head = 0; // the first byte not yet read
+	private int tail = 0; // where the next byte goes
+	private boolean closed = false;
+
+	final InputStream in = new InputStream() {
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = read(b, 0, 1);
+			return n > 0 ? b[0] & 0xFF : -1; // -1 on a time out too, as RXTX does
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return SerialPipe.this.read(b, off, len, TimeUnit.MILLISECONDS.toNanos(timeout));
+		}
+
+		@Override
+		public int available() {
+			return SerialPipe.this.available();
+		}
+
+		@Override
+		public long skip(long n) {
+			return SerialPipe.this.skip(n);
+		}
+
+		@Override
+		public void close() {
+			SerialPipe.this.close();
+		}
+	};
+
+	final OutputStream out = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			SerialPipe.this.write(b, off, len);
+		}
+
+		@Override
+		public void close() {
+			SerialPipe.this.close();
+		}
+	};
+
+	/**
+	 * a pipe whose reads give up after timeout ms.
+	 */
+	SerialPipe(int timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * reads like in does, but giving up after timeout ns rather than the
+	 * pipe's own timeout.
+	 */
+	synchronized int read(byte[] b, int off, int len, long timeout) throws IOException {
+		if (len == 0)
+			return 0;
+		long deadline = System.nanoTime() + timeout;
+		while (head == tail) {
+			if (closed)
+				return -1;
+			long wait = deadline - System.nanoTime();
+			if (wait <= 0)
+				return 0;
+			try {
+				TimeUnit.NANOSECONDS.timedWait(this, wait);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+		int n = 0;
+		while (n < len && head != tail) {
+			b[off + n++] = buf[head & MASK];
+			head++;
+		}
+		notifyAll();
+		return n;
+	}
+
+	private synchronized void write(byte[] b, int off, int len) throws IOException {
+		for (int i = 0; i < len; i++) {
+			while (tail - head == SIZE && !closed)
+				try {
+					notifyAll(); // the reader may be waiting for what is in already
+					wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			if (closed)
+				throw new IOException("serial pipe closed");
+			buf[tail & MASK] = b[off + i];
+			tail++;
+		}
+		notifyAll();
+	}
+
+	private synchronized int available() {
+		return tail - head;
+	}
+
+	private synchronized long skip(long n) {
+		int k = (int) Math.min(n, tail - head);
+		if (k > 0) {
+			head += k;
+			notifyAll();
+		}
+		return k < 0 ? 0 : k;
+	}
+
+	synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+}
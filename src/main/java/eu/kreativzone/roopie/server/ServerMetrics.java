@@ -0,0 +1,149 @@
+package eu.kreativzone.roopie.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what the GuiServer does for its clients: how many there are, the
+ * frames sent to them and dropped because they were too slow, how long after
+ * a frame arrived from the roomba it was on its way to a client, the drive
+ * datagrams acted on and dropped as late, unknown or malformed, and the
+ * browsers watching the EventStream with the events sent to them and dropped.
+ */
+class ServerMetrics implements ServerMetricsMBean {
+	final AtomicInteger clients = new AtomicInteger();
+	final AtomicLong connections = new AtomicLong();
+	final AtomicLong framesSent = new AtomicLong();
+	final AtomicLong framesDropped = new AtomicLong();
+	final AtomicLong datagrams = new AtomicLong();
+	final AtomicLong datagramsDropped = new AtomicLong();
+	final AtomicInteger subscribers = new AtomicInteger();
+	final AtomicLong eventsSent = new AtomicLong();
+	final AtomicLong eventsDropped = new AtomicLong();
+	final Histogram sendLatency = new Histogram(); // us
+
+	// sampled
+	private long sampled = System.nanoTime();
+	private long last = 0;
+	private volatile double frameRate;
+
+	/**
+	 * works out the rates since the last call.
+	 */
+	synchronized void sample() {
+		long now = System.nanoTime();
+		double seconds = (now - sampled) / 1e9;
+		if (seconds <= 0)
+			return;
+		long sent = framesSent.get();
+		frameRate = (sent - last) / seconds;
+		last = sent;
+		sampled = now;
+	}
+
+	/**
+	 * writes the metrics in the Prometheus text format.
+	 */
+	void write(StringBuilder b) {
+		Metrics.gauge(b, "roopie_clients", "", getClients());
+		Metrics.counter(b, "roopie_connections_total", "", getConnections());
+		Metrics.counter(b, "roopie_frames_sent_total", "", getFramesSent());
+		Metrics.counter(b, "roopie_frames_dropped_total", "", getFramesDropped());
+		Metrics.gauge(b, "roopie_frames_sent_per_second", "", getFramesSentPerSecond());
+		Metrics.counter(b, "roopie_datagrams_total", "", getDatagrams());
+		Metrics.counter(b, "roopie_datagrams_dropped_total", "", getDatagramsDropped());
+		Metrics.gauge(b, "roopie_event_subscribers", "", getSubscribers());
+		Metrics.counter(b, "roopie_events_sent_total", "", getEventsSent());
+		Metrics.counter(b, "roopie_events_dropped_total", "", getEventsDropped());
+		Metrics.type(b, "roopie_send_latency_us", "histogram");
+		sendLatency.write(b, "roopie_send_latency_us", "");
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.ServerMetricsMBean#getClients()
+	 */
+	@Override
+	public int getClients() {
+		return clients.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.ServerMetricsMBean#getConnections()
+	 */
+	@Override
+	public long getConnections() {
+		return connections.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.ServerMetricsMBean#getFramesSent()
+	 */
+	@Override
+	public long getFramesSent() {
+		return framesSent.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.ServerMetricsMBean#getFramesDropped()
+	 */
+	@Override
+	public long getFramesDropped() {
+		return framesDropped.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.ServerMetricsMBean#getFramesSentPerSecond()
+	 */
+	@Override
+	public double getFramesSentPerSecond() {
+		return frameRate;
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.ServerMetricsMBean#getDatagrams()
+	 */
+	@Override
+	public long getDatagrams() {
+		return datagrams.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.ServerMetricsMBean#getDatagramsDropped()
+	 */
+	@Override
+	public long getDatagramsDropped() {
+		return datagramsDropped.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.ServerMetricsMBean#getSubscribers()
+	 */
+	@Override
+	public int getSubscribers() {
+		return subscribers.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.ServerMetricsMBean#getEventsSent()
+	 */
+	@Override
+	public long getEventsSent() {
+		return eventsSent.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.ServerMetricsMBean#getEventsDropped()
+	 */
+	@Override
+	public long getEventsDropped() {
+		return eventsDropped.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see eu.kreativzone.roopie.server.ServerMetricsMBean#getSendLatencyP99()
+	 */
+	@Override
+	public long getSendLatencyP99() {
+		return sendLatency.percentile(99);
+	}
+}
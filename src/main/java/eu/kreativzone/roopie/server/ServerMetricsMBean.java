@@ -0,0 +1,31 @@
+package eu.kreativzone.roopie.server;
+
+/**
+ * What JMX shows of the GuiServer's ServerMetrics.
+ */
+public interface ServerMetricsMBean {
+
+	int getClients();
+
+	long getConnections();
+
+	long getFramesSent();
+
+	long getFramesDropped();
+
+	double getFramesSentPerSecond();
+
+	long getDatagrams();
+
+	long getDatagramsDropped();
+
+	/** browsers watching the event stream */
+	int getSubscribers();
+
+	long getEventsSent();
+
+	long getEventsDropped();
+
+	/** the 99th percentile of the time from a frame arriving to it being sent, in us */
+	long getSendLatencyP99();
+}
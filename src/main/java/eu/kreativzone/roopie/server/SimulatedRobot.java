@@ -0,0 +1,142 @@
+package eu.kreativzone.roopie.server;
+
+/**
+ * The body of the simulated Roomba: a round robot with two wheels, driven
+ * about a Room. step() moves it on by the wheel velocities and works out what
+ * its sensors see from where it ends up, so the encoders, distance and angle
+ * agree with where it actually went - pushing against a box gets it nowhere,
+ * and the encoders say so.
+ */
+class SimulatedRobot {
+	static final double RADIUS = 170; // mm
+	static final double WHEEL_BASE = 235;
+	static final double COUNTS_PER_MM = 508.8 / (72 * Math.PI);
+
+	// where the sensors look, in degrees from straight ahead, anticlockwise
+	private static final double[] LIGHT_BUMPS = { 72, 42, 13, -13, -42, -72 }; // L, FL, CL, CR, FR, R
+	private static final double[] CLIFFS = { 60, 20, -20, -60 }; // L, FL, FR, R
+	private static final double LIGHT_RANGE = 250; // mm beyond the bumper
+	private static final double WALL_RANGE = 100;
+	private static final double CLIFF_REACH = 150; // from the centre
+	private static final double BUMP = 8; // mm, a step at top speed, so the robot stopped short still bumps
+
+	private final Room room;
+	double x;
+	double y;
+	double heading; // radians, anticlockwise from the x axis
+	int right = 0; // wheel velocities, mm/s
+	int left = 0;
+	double distance = 0; // travelled all told, mm
+	double angle = 0; // turned all told, degrees
+	double encoderR = 0; // counts
+	double encoderL = 0;
+	boolean fallen = false; // a wheel went over a cliff
+
+	SimulatedRobot(Room room) {
+		this.room = room;
+		x = room.startX;
+		y = room.startY;
+		heading = room.startHeading;
+	}
+
+	/**
+	 * moves the robot on dt seconds.
+	 */
+	void step(double dt) {
+		if (fallen)
+			return; // the wheels are in the air
+		double v = (right + left) / 2.0;
+		double w = (right - left) / WHEEL_BASE;
+		double turn = w * dt;
+		double h = heading + turn / 2;
+		double nx = x + v * dt * Math.cos(h);
+		double ny = y + v * dt * Math.sin(h);
+		double travelled = v * dt;
+		if (room.clearance(nx, ny, RADIUS) < 0) {
+			travelled = 0; // against something - it can only turn
+		} else {
+			x = nx;
+			y = ny;
+		}
+		heading += turn;
+		distance += travelled;
+		angle += Math.toDegrees(turn);
+		encoderR += (travelled + turn * WHEEL_BASE / 2) * COUNTS_PER_MM;
+		encoderL += (travelled - turn * WHEEL_BASE / 2) * COUNTS_PER_MM;
+		if (room.cliff(x, y)) {
+			fallen = true;
+			right = left = 0;
+		}
+	}
+
+	/**
+	 * whether cliff sensor i (L, FL, FR, R) sees no floor.
+	 */
+	boolean cliff(int i) {
+		double a = heading + Math.toRadians(CLIFFS[i]);
+		return room.cliff(x + CLIFF_REACH * Math.cos(a), y + CLIFF_REACH * Math.sin(a));
+	}
+
+	/**
+	 * the bump sensor bits of packet 7: bit 0 right, 1 left, 2 and 3 the
+	 * wheel drops.
+	 */
+	int bumps() {
+		int bits = fallen ? 0x0C : 0;
+		for (double a = -90; a <= 90; a += 15) {
+			double d = room.ray(x, y, heading + Math.toRadians(a)) - RADIUS;
+			if (d < BUMP)
+				bits |= a > 15 ? 2 : a < -15 ? 1 : 3;
+		}
+		return bits;
+	}
+
+	/**
+	 * the reading of light bump i (L, FL, CL, CR, FR, R), 0 to 4095.
+	 */
+	int lightBump(int i) {
+		double d = room.ray(x, y, heading + Math.toRadians(LIGHT_BUMPS[i])) - RADIUS;
+		if (d >= LIGHT_RANGE)
+			return 0;
+		double s = 1 - Math.max(d, 0) / LIGHT_RANGE;
+		return (int) (4095 * s * s);
+	}
+
+	/**
+	 * the reading of the wall sensor on the right hand side.
+	 */
+	int wallSignal() {
+		double d = room.ray(x, y, heading - Math.PI / 2) - RADIUS;
+		if (d >= WALL_RANGE)
+			return 0;
+		return (int) (1023 * (1 - Math.max(d, 0) / WALL_RANGE));
+	}
+
+	/**
+	 * fills in the sensor packets the body decides: bumps, wall, cliffs,
+	 * encoders, light bumps and stasis. Distance and angle are left to the
+	 * caller, as they count from whenever they were last read.
+	 */
+	void sense(int[] values) {
+		values[IRoombaOpenInterface.BUMPS] = bumps();
+		int wall = wallSignal();
+		values[IRoombaOpenInterface.WALL_SIG] = wall;
+		values[IRoombaOpenInterface.WALL] = wall > 500 ? 1 : 0;
+		for (int i = 0; i < 4; i++) {
+			boolean c = cliff(i);
+			values[IRoombaOpenInterface.CLIFF_L + i] = c ? 1 : 0;
+			values[IRoombaOpenInterface.CLIFF_L_SIG + i] = c ? 8 : 2800;
+		}
+		values[IRoombaOpenInterface.ENCODER_R] = (int) encoderR & 0xFFFF;
+		values[IRoombaOpenInterface.ENCODER_L] = (int) encoderL & 0xFFFF;
+		int bumper = 0;
+		for (int i = 0; i < 6; i++) {
+			int b = lightBump(i);
+			values[IRoombaOpenInterface.LIGHT_BUMP_L + i] = b;
+			if (b > 200)
+				bumper |= 1 << i;
+		}
+		values[IRoombaOpenInterface.LIGHT_BUMPER] = bumper;
+		values[IRoombaOpenInterface.STASIS] = right + left > 0 && !fallen ? 1 : 0;
+	}
+}
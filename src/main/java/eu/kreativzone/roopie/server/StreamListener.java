@@ -0,0 +1,15 @@
+package eu.kreativzone.roopie.server;
+
+/**
+ * Gets told about each frame of stream data as it arrives from the Roomba -
+ * see IRoombaOpenInterface.stream().
+ */
+public interface StreamListener {
+
+	/**
+	 * Called on the stream thread once a frame has been decoded and its
+	 * checksum found good, and published in the snapshot. Don't block here:
+	 * copy what you need or hand it on.
+	 */
+	void frameReceived(SensorSnapshot snapshot);
+}
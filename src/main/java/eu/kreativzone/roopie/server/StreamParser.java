@@ -0,0 +1,100 @@
+package eu.kreativzone.roopie.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Picks the frames out of the bytes the OI streams, which look like
+ * <p>
+ * [19][n][packet id][data]...[packet id][data][checksum]
+ * <p>
+ * where n counts the bytes between itself and the checksum, and all n + 3
+ * bytes add up to 0 (mod 256). Bytes are read straight into a buffer and
+ * next() hands back one frame at a time, decoded by the StreamPlan for the
+ * packets being streamed. A byte that can't be the start of a good frame -
+ * wrong header, wrong length, bad checksum, unexpected packet id - is dropped
+ * and the search starts again at the one after it, so after corrupt data we
+ * are back in sync within one frame and no good frame is lost. Nothing is
+ * allocated per frame.
+ * <p>
+ * The bytes not used yet are moved back to the start of the buffer before it
+ * fills, so a frame is always in one piece and can be checked and decoded
+ * straight from the buffer.
+ */
+class StreamParser {
+	static final int HEADER = 19;
+
+	// what next() returns. The error codes are the SensorSnapshot status
+	static final int MORE = -1; // no complete frame yet
+	static final int OK = 0;
+	static final int CHECKSUM = 1;
+	static final int WRONG_ID = 2;
+	static final int OUT_OF_SYNC = 4;
+
+	private static final int SIZE = 1024; // more than two of the largest frames
+
+	private final byte[] buffer = new byte[SIZE];
+	private int head = 0; // the first byte not yet used
+	private int tail = 0; // where the next byte goes
+	private StreamPlan plan = null; // null when not streaming
+
+	/**
+	 * sets the packets that will be in each frame and forgets any bytes read
+	 * so far.
+	 */
+	void setPlan(StreamPlan plan) {
+		this.plan = plan.packets.length == 0 ? null : plan;
+		head = tail = 0;
+	}
+
+	/**
+	 * reads what the stream will give us without blocking beyond the stream's
+	 * own behaviour. Returns the number of bytes read, or -1 at end of stream.
+	 * Call next() until it returns MORE before reading again.
+	 */
+	int readFrom(InputStream in) throws IOException {
+		if (tail > SIZE / 2) {
+			// less than a frame is left once next() has had its go
+			System.arraycopy(buffer, head, buffer, 0, tail - head);
+			tail -= head;
+			head = 0;
+		}
+		int n = in.read(buffer, tail, SIZE - tail);
+		if (n > 0)
+			tail += n;
+		return n;
+	}
+
+	/**
+	 * looks for the next frame. If it finds a good one, decodes it into data,
+	 * which is indexed by packet id, and returns OK. Returns MORE when there
+	 * isn't a whole frame to look at, or one of the error codes after
+	 * dropping a byte that didn't start a good frame.
+	 */
+	int next(int[] data) {
+		if (tail - head < 2 || plan == null)
+			return MORE;
+		if (buffer[head] != HEADER || (buffer[head + 1] & 0xFF) != plan.length) {
+			head++;
+			return OUT_OF_SYNC;
+		}
+		int end = head + plan.frameLength;
+		if (end > tail)
+			return MORE;
+		int csm = 0;
+		for (int i = head; i < end; i++)
+			csm += buffer[i];
+		if ((csm & 0xFF) != 0) {
+			head++;
+			return CHECKSUM;
+		}
+		if (!plan.idsMatch(buffer, head)) {
+			head++;
+			return WRONG_ID;
+		}
+		// it's good - decode it
+		plan.decode(buffer, head, data);
+		head = end;
+		return OK;
+	}
+}
@@ -0,0 +1,136 @@
+package eu.kreativzone.roopie.server;
+
+/**
+ * A packet list for the stream, worked out once from pktTable when stream()
+ * is called: the Stream command that asks for it, the length of the frames
+ * that will come back, and where each packet's data is in a frame, how wide
+ * it is and whether it is signed. Decoding a frame is then a single pass over
+ * the values, with nothing looked up per byte.
+ * <p>
+ * A group packet comes as its id followed by the data of each packet in it,
+ * so streaming group 100 decodes every sensor from one run of bytes.
+ * <p>
+ * A plan never changes once made, so it can be handed between threads as it
+ * is.
+ */
+final class StreamPlan {
+	// how a packet's data is read
+	private static final byte UNSIGNED_1 = 0;
+	private static final byte SIGNED_1 = 1;
+	private static final byte UNSIGNED_2 = 2;
+	private static final byte SIGNED_2 = 3;
+
+	/** no packets: pauses the stream */
+	static final StreamPlan PAUSE = new StreamPlan(new int[0]);
+
+	final int[] packets; // as asked for
+	final int[] values; // the single packets decoded, groups expanded
+	final int length; // the n in [19][n]...[checksum]
+	final int frameLength; // all of it, n + 3
+	private final byte[] command;
+	private final int[] ids; // where each packet id is, from the start of the frame
+	private final int[] offsets; // where each value's data is
+	private final byte[] kinds;
+
+	/**
+	 * a plan for streaming packets, which may be single packets (7-58) or
+	 * groups (0-6, 100-107).
+	 */
+	StreamPlan(int[] packets) {
+		if (packets.length > 255)
+			throw new IllegalArgumentException("at most 255 packets can be streamed");
+		this.packets = packets.clone();
+		ids = new int[packets.length];
+		int count = 0;
+		for (int p = 0; p < packets.length; p++)
+			count += members(packets[p]).length;
+		values = new int[count];
+		offsets = new int[count];
+		kinds = new byte[count];
+		int i = 2;
+		int v = 0;
+		for (int p = 0; p < packets.length; p++) {
+			ids[p] = i++;
+			for (int pid : members(packets[p])) {
+				int z = Roomba.pktTable[pid];
+				values[v] = pid;
+				offsets[v] = i;
+				kinds[v++] = z == 1 ? UNSIGNED_1 : z == -1 ? SIGNED_1 : z == 2 ? UNSIGNED_2 : SIGNED_2;
+				i += z < 0 ? -z : z;
+			}
+		}
+		length = i - 2;
+		if (length > 255)
+			throw new IllegalArgumentException("too many packets for one frame");
+		frameLength = length + 3;
+		if (packets.length == 0) {
+			command = new byte[] { (byte) 150, 0 };
+		} else {
+			command = new byte[2 + packets.length];
+			command[0] = (byte) 148;
+			command[1] = (byte) packets.length;
+			for (int p = 0; p < packets.length; p++)
+				command[2 + p] = (byte) packets[p];
+		}
+	}
+
+	/**
+	 * the single packets pid stands for: those in the group, or pid itself.
+	 */
+	private static int[] members(int pid) {
+		int[] group = Roomba.group(pid);
+		if (group != null)
+			return group;
+		if (!single(pid))
+			throw new IllegalArgumentException("packet " + pid + " can't be streamed");
+		return new int[] { pid };
+	}
+
+	/**
+	 * whether pid is a single packet that can be streamed (7-58).
+	 */
+	static boolean single(int pid) {
+		return pid >= IRoombaOpenInterface.BUMPS && pid < Roomba.pktTable.length && Roomba.pktTable[pid] != 0;
+	}
+
+	/**
+	 * copies the command that starts streaming these packets, or pauses the
+	 * stream if there are none, into cmd. Returns its length.
+	 */
+	int command(byte[] cmd) {
+		System.arraycopy(command, 0, cmd, 0, command.length);
+		return command.length;
+	}
+
+	/**
+	 * whether the frame starting at b[off] has the packet ids it should.
+	 */
+	boolean idsMatch(byte[] b, int off) {
+		for (int p = 0; p < packets.length; p++)
+			if ((b[off + ids[p]] & 0xFF) != packets[p])
+				return false;
+		return true;
+	}
+
+	/**
+	 * decodes the frame starting at b[off] into data, indexed by packet id.
+	 */
+	void decode(byte[] b, int off, int[] data) {
+		for (int v = 0; v < values.length; v++) {
+			int i = off + offsets[v];
+			switch (kinds[v]) {
+			case UNSIGNED_1:
+				data[values[v]] = b[i] & 0xFF;
+				break;
+			case SIGNED_1:
+				data[values[v]] = b[i];
+				break;
+			case UNSIGNED_2:
+				data[values[v]] = (b[i] & 0xFF) << 8 | b[i + 1] & 0xFF;
+				break;
+			default:
+				data[values[v]] = b[i] << 8 | b[i + 1] & 0xFF;
+			}
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package eu.kreativzone.roopie.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads back what a TelemetryRecorder recorded, a record at a time, oldest
+ * first and across all the segments.
+ */
+class TelemetryReader {
+	private final File[] segments;
+	private int next = 0; // the segment to open next
+	private MappedByteBuffer segment = null;
+
+	// the record just read
+	int status;
+	long timestamp;
+	long nanoTime;
+	int n; // packets in it
+	final int[] packets = new int[255];
+	// the values of every packet so far, by packet id, 16 bits as recorded
+	final int[] values = new int[SensorSnapshot.SIZE];
+
+	/**
+	 * a reader for the prefix-n.rec segments in dir.
+	 */
+	TelemetryReader(File dir, String prefix) throws IOException {
+		segments = TelemetryRecorder.segments(dir, prefix);
+		if (segments.length == 0)
+			throw new IOException("no recording " + prefix + " in " + dir);
+	}
+
+	/**
+	 * reads the next record. Returns false when there are no more.
+	 */
+	boolean next() throws IOException {
+		while (true) {
+			if (segment != null && segment.remaining() >= 2) {
+				int size = segment.getShort() & 0xFFFF;
+				if (size != 0) {
+					status = segment.get();
+					n = segment.get() & 0xFF;
+					timestamp = segment.getLong();
+					nanoTime = segment.getLong();
+					for (int i = 0; i < n; i++) {
+						packets[i] = segment.get() & 0xFF;
+						int value = segment.getShort() & 0xFFFF;
+						if (packets[i] < values.length)
+							values[packets[i]] = value;
+					}
+					return true;
+				}
+			}
+			if (next == segments.length)
+				return false;
+			open(segments[next++]);
+		}
+	}
+
+	private void open(File f) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			segment = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		} finally {
+			file.close();
+		}
+		if (segment.remaining() < TelemetryRecorder.SEGMENT_HEADER || segment.getInt() != TelemetryRecorder.MAGIC
+				|| segment.getShort() != TelemetryRecorder.VERSION)
+			throw new IOException(f + " isn't a recording we can read");
+		segment.position(TelemetryRecorder.SEGMENT_HEADER);
+	}
+}
@@ -0,0 +1,162 @@
+package eu.kreativzone.roopie.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the sensor stream to disk, frame by frame, as it is decoded. Frames
+ * are appended to segment files that are memory mapped, so recording a frame
+ * is a few puts into memory: nothing is allocated and nothing waits for the
+ * disk, which the OS writes back to in its own time. When a segment is full
+ * the next one is started, and only the newest few are kept, so a recording
+ * can run for ever in a fixed amount of space.
+ * <p>
+ * A segment, robot0-00000001.rec and so on, starts with a header
+ * <p>
+ * [int MAGIC][short VERSION][short 0][long the time it was started]
+ * <p>
+ * followed by records, all big endian:
+ * <p>
+ * [short size][byte status][byte n][long timestamp][long nanoTime]
+ * [byte packet id][short value]...
+ * <p>
+ * where size counts the bytes after itself, status is OK or the error the
+ * stream parser found (with n 0), and the timestamps are those of the
+ * snapshot. Values are stored in 16 bits; pktTable tells whether they are
+ * signed. A size of 0 marks the end of the records in a segment.
+ * <p>
+ * Only the stream thread records.
+ */
+class TelemetryRecorder {
+	static final int MAGIC = 0x52524543; // "RREC"
+	static final int VERSION = 1;
+	static final int SEGMENT_HEADER = 16;
+	static final int RECORD_HEADER = 2 + 1 + 1 + 8 + 8;
+	static final String SUFFIX = ".rec";
+	static final int DEFAULT_SEGMENT_SIZE = 16 << 20;
+	private static final EventLog.Event STOPPED = EventLog.error(TelemetryRecorder.class,
+			"telemetry recording stopped: {}");
+
+	private final File dir;
+	private final String prefix;
+	private final int segmentSize;
+	private final int keep; // segments
+	private final long minInterval; // ns between recorded frames, 0 for all of them
+	private MappedByteBuffer segment = null;
+	private long number; // of the current segment
+	private long last = 0; // nanoTime of the last frame recorded
+	private int lastStatus = StreamParser.OK;
+	private boolean failed = false;
+
+	/**
+	 * a recorder writing prefix-n.rec segments of segmentSize bytes to dir,
+	 * keeping the newest keep of them, and recording at most maxRate frames
+	 * a second (any number if maxRate is 0).
+	 */
+	TelemetryRecorder(File dir, String prefix, int segmentSize, int keep, int maxRate) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("can't make " + dir);
+		this.dir = dir;
+		this.prefix = prefix;
+		this.segmentSize = segmentSize;
+		this.keep = keep < 1 ? 1 : keep;
+		minInterval = maxRate > 0 ? TimeUnit.SECONDS.toNanos(1) / maxRate : 0;
+		File[] old = segments(dir, prefix);
+		number = old.length == 0 ? 0 : number(old[old.length - 1], prefix);
+		next();
+	}
+
+	/**
+	 * the segments with the prefix in dir, oldest first.
+	 */
+	static File[] segments(File dir, final String prefix) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return new File[0];
+		int n = 0;
+		for (File f : files)
+			if (number(f, prefix) > 0)
+				files[n++] = f;
+		files = Arrays.copyOf(files, n);
+		Arrays.sort(files); // the numbers are zero padded
+		return files;
+	}
+
+	private static long number(File f, String prefix) {
+		String name = f.getName();
+		if (!name.startsWith(prefix + "-") || !name.endsWith(SUFFIX))
+			return 0;
+		try {
+			return Long.parseLong(name.substring(prefix.length() + 1, name.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * starts the next segment, dropping the oldest if there are too many.
+	 */
+	private void next() throws IOException {
+		number++;
+		File f = new File(dir, String.format("%s-%08d%s", prefix, number, SUFFIX));
+		RandomAccessFile file = new RandomAccessFile(f, "rw");
+		try {
+			file.setLength(segmentSize); // all zeros, so it ends at the end of what is written
+			segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		} finally {
+			file.close(); // the mapping stays good
+		}
+		segment.putInt(MAGIC);
+		segment.putShort((short) VERSION);
+		segment.putShort((short) 0);
+		segment.putLong(System.currentTimeMillis());
+		File[] all = segments(dir, prefix);
+		for (int i = 0; i < all.length - keep; i++)
+			all[i].delete();
+	}
+
+	/**
+	 * records a frame: the packets in it, their values (indexed by packet id)
+	 * and the status the parser gave it. A frame that failed has no values,
+	 * and only the first of a run of failures is recorded.
+	 */
+	void record(int[] packets, int[] data, int status, long timestamp, long nanoTime) {
+		if (failed)
+			return;
+		if (status != StreamParser.OK) {
+			if (status == lastStatus)
+				return;
+			lastStatus = status;
+		} else {
+			lastStatus = status;
+			if (minInterval > 0 && nanoTime - last < minInterval)
+				return;
+		}
+		int n = status == StreamParser.OK ? packets.length : 0;
+		int size = RECORD_HEADER + 3 * n;
+		try {
+			if (segment.remaining() < size + 2) // leave room for the end marker
+				next();
+		} catch (IOException ex) {
+			EventLog.log(STOPPED, ex);
+			failed = true;
+			return;
+		}
+		segment.putShort((short) (size - 2));
+		segment.put((byte) status);
+		segment.put((byte) n);
+		segment.putLong(timestamp);
+		segment.putLong(nanoTime);
+		for (int i = 0; i < n; i++) {
+			segment.put((byte) packets[i]);
+			segment.putShort((short) data[packets[i]]);
+		}
+		if (status == StreamParser.OK)
+			last = nanoTime;
+	}
+}
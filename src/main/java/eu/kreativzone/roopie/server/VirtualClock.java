@@ -0,0 +1,43 @@
+package eu.kreativzone.roopie.server;
+
+/**
+ * Simulated time, which can run faster than real time. It only moves on when
+ * whoever runs the simulation calls advanceTo(), and tells them how long to
+ * wait in real time for the next step to be due. With a speedup of 50 a
+ * second of real time is 50 s of simulation.
+ */
+class VirtualClock {
+	private final double speedup;
+	private long origin = System.nanoTime(); // the real time at virtual time 0
+	private volatile long now = 0; // ns
+
+	VirtualClock(double speedup) {
+		this.speedup = speedup > 0 ? speedup : 1;
+	}
+
+	/**
+	 * the virtual time, in ns since the simulation started.
+	 */
+	long nanoTime() {
+		return now;
+	}
+
+	/**
+	 * the real ns until virtual time t is due, 0 or less if it is.
+	 */
+	long realDelay(long t) {
+		return origin + (long) (t / speedup) - System.nanoTime();
+	}
+
+	void advanceTo(long t) {
+		now = t;
+	}
+
+	/**
+	 * lets real time that the simulation didn't keep up with go, rather than
+	 * rushing to catch up.
+	 */
+	void rebase() {
+		origin = System.nanoTime() - (long) (now / speedup);
+	}
+}